@@ -0,0 +1,79 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Great circle distances between consecutive pairs of random points, one at a time and in a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GeoMathBenchmark {
+	@Param({ "10000" })
+	public int points;
+
+	private double[] coords;
+
+	private double[] xs;
+	private double[] ys;
+	private double[] out;
+
+	@Setup
+	public void setup() {
+		coords = new SyntheticNetwork(42).points(points);
+
+		xs = new double[points];
+		ys = new double[points];
+		for (int i = 0; i < points; i++) {
+			xs[i] = coords[i * 2];
+			ys[i] = coords[i * 2 + 1];
+		}
+		out = new double[points];
+	}
+
+	@Benchmark
+	public double greatCircle() {
+		double total = 0;
+		for (int i = 1; i < points; i++) {
+			total += GeoMath.greatCircle(coords[i * 2 - 2], coords[i * 2 - 1], coords[i * 2], coords[i * 2 + 1]);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public double[] segmentLengths() {
+		GeoMath.segmentLengths(xs, ys, points, out);
+		return out;
+	}
+
+	@Benchmark
+	public double[] distances() {
+		GeoMath.distances(xs[0], ys[0], xs, ys, points, out);
+		return out;
+	}
+
+	@Benchmark
+	public double fastDistance() {
+		double total = 0;
+		for (int i = 1; i < points; i++) {
+			total += GeoMath.fastDistance(Math.toRadians(xs[i - 1]), Math.toRadians(ys[i - 1]),
+					Math.toRadians(xs[i]), Math.toRadians(ys[i]));
+		}
+		return total;
+	}
+}
@@ -0,0 +1,210 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.Random;
+
+/**
+ * Checks that GeoMath.greatCircle, and the batch kernels built on the same haversine kernel, give exactly the
+ * distances of the formula greatCircle has always used, since callers compare distances against thresholds and
+ * truncate times computed from them.
+ *
+ * Also checks GeoMath.fastDistance against greatCircle (through the haversine kernel it wraps) for points within
+ * FAST_DISTANCE_MAX_DELTA of each other: fastDistance must never be shorter, beyond rounding, and never more than
+ * FAST_DISTANCE_ERROR longer. It also checks that fastFurtherThan never rules out a pair that greatCircle puts
+ * within the limit. Pairs are drawn at random over the whole range of coordinates, close to where the cosine of x
+ * is zero, with differences of exactly FAST_DISTANCE_MAX_DELTA, and very close together.
+ *
+ * Run it with the benchmark sources compiled:
+ *
+ *   mvn -Pbenchmarks compile exec:java -Dexec.mainClass=com.conveyal.geom2gtfs.GeoMathCheck
+ *
+ * It exits with status 1 if any check fails.
+ */
+public class GeoMathCheck {
+	private static final int PAIRS = 2000000;
+
+	/** how much shorter than greatCircle fastDistance may come out, as a fraction, from rounding alone */
+	private static final double ROUNDING = 1e-12;
+
+	private static final double MAX_DELTA = GeoMath.FAST_DISTANCE_MAX_DELTA;
+
+	private static int failures = 0;
+	private static int reported = 0;
+
+	private static long checked = 0;
+	private static long checkedExact = 0;
+	private static double worstLonger = 0;
+	private static double worstShorter = 0;
+
+	public static void main(String[] args) {
+		Random random = new Random(42);
+
+		// greatCircle against the formula it has always used, in degrees, from far apart to very close together
+		for (int i = 0; i < PAIRS; i++) {
+			double x1 = (random.nextDouble() * 2 - 1) * 180;
+			double y1 = (random.nextDouble() * 2 - 1) * 90;
+			double scale = Math.pow(10, 2 - random.nextInt(10));
+			checkExact(x1, y1, x1 + (random.nextDouble() * 2 - 1) * scale, y1 + (random.nextDouble() * 2 - 1) * scale);
+		}
+
+		// anywhere
+		for (int i = 0; i < PAIRS; i++) {
+			double x = (random.nextDouble() * 2 - 1) * Math.PI;
+			double y = (random.nextDouble() * 2 - 1) * Math.PI;
+			check(x, y, x + delta(random), y + delta(random));
+		}
+
+		// close to where cos(x) is zero, including pairs on either side of it
+		for (int i = 0; i < PAIRS; i++) {
+			double x = (random.nextBoolean() ? 1 : -1) * Math.PI / 2 + delta(random);
+			double y = (random.nextDouble() * 2 - 1) * Math.PI;
+			check(x, y, x + delta(random), y + delta(random));
+		}
+
+		// differences of exactly the largest delta, in x, in y and in both
+		for (int i = 0; i < PAIRS; i++) {
+			double x = (random.nextDouble() * 2 - 1) * Math.PI;
+			double y = (random.nextDouble() * 2 - 1) * Math.PI;
+			double dx = random.nextBoolean() ? MAX_DELTA : -MAX_DELTA;
+			double dy = random.nextBoolean() ? MAX_DELTA : -MAX_DELTA;
+			switch (i % 3) {
+			case 0:
+				check(x, y, edge(x, dx), y + delta(random));
+				break;
+			case 1:
+				check(x, y, x + delta(random), edge(y, dy));
+				break;
+			default:
+				check(x, y, edge(x, dx), edge(y, dy));
+			}
+		}
+
+		// the largest delta close to where cos(x) is zero
+		for (int i = 0; i < PAIRS; i++) {
+			double x = (random.nextBoolean() ? 1 : -1) * Math.PI / 2 + delta(random);
+			double y = (random.nextDouble() * 2 - 1) * Math.PI;
+			check(x, y, edge(x, random.nextBoolean() ? MAX_DELTA : -MAX_DELTA), edge(y, MAX_DELTA));
+		}
+
+		// very close together
+		for (int i = 0; i < PAIRS; i++) {
+			double x = (random.nextDouble() * 2 - 1) * Math.PI;
+			double y = (random.nextDouble() * 2 - 1) * Math.PI;
+			double scale = Math.pow(10, -4 - random.nextInt(6));
+			check(x, y, x + delta(random) * scale, y + delta(random) * scale);
+		}
+
+		System.out.println(checkedExact + " pairs checked against the original greatCircle");
+		System.out.println(checked + " pairs checked; fastDistance was at most " + worstLonger
+				+ " longer and at most " + worstShorter + " shorter than greatCircle, as fractions");
+
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+
+	/** a random difference of up to FAST_DISTANCE_MAX_DELTA either way */
+	private static double delta(Random random) {
+		return (random.nextDouble() * 2 - 1) * MAX_DELTA;
+	}
+
+	/** the value nearest to v + d that is no further than d from v, despite rounding */
+	private static double edge(double v, double d) {
+		double ret = v + d;
+		while (Math.abs(ret - v) > Math.abs(d)) {
+			ret = Math.nextAfter(ret, v);
+		}
+		return ret;
+	}
+
+	/** greatCircle as it was originally written, on points in degrees */
+	private static double originalGreatCircle(double x1deg, double y1deg, double x2deg, double y2deg) {
+		double x1 = Math.toRadians(x1deg);
+		double y1 = Math.toRadians(y1deg);
+		double x2 = Math.toRadians(x2deg);
+		double y2 = Math.toRadians(y2deg);
+
+		// haversine formula
+		double a = Math.pow(Math.sin((x2-x1)/2), 2)
+				+ Math.cos(x1) * Math.cos(x2) * Math.pow(Math.sin((y2-y1)/2), 2);
+
+		// great circle distance in radians
+		double angle2 = 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+
+		// convert back to degrees
+		angle2 = Math.toDegrees(angle2);
+
+		// each degree on a great circle of Earth is 60 nautical miles
+		double distNautMiles = 60 * angle2;
+
+		double distMeters = distNautMiles * 1852;
+		return distMeters;
+	}
+
+	/** Check every way GeoMath measures the distance between two points in degrees against the original */
+	private static void checkExact(double x1, double y1, double x2, double y2) {
+		checkedExact++;
+		double expected = originalGreatCircle(x1, y1, x2, y2);
+
+		double[] xs = { x1, x2 };
+		double[] ys = { y1, y2 };
+		double[] out = new double[2];
+
+		checkSame(GeoMath.greatCircle(x1, y1, x2, y2), expected, "greatCircle", x1, y1, x2, y2);
+
+		GeoMath.segmentLengths(xs, ys, 2, out);
+		checkSame(out[0], expected, "segmentLengths", x1, y1, x2, y2);
+
+		GeoMath.distances(x1, y1, xs, ys, 2, out);
+		checkSame(out[1], expected, "distances", x1, y1, x2, y2);
+	}
+
+	private static void checkSame(double actual, double expected, String what, double x1, double y1, double x2,
+			double y2) {
+		if (Double.compare(actual, expected) != 0) {
+			failures++;
+			if (reported++ < 20) {
+				System.out.println("FAILED: " + what + " matches the original greatCircle: (" + x1 + ", " + y1
+						+ ") to (" + x2 + ", " + y2 + "): " + actual + ", expected " + expected);
+			}
+		}
+	}
+
+	private static void check(double x1, double y1, double x2, double y2) {
+		if (Math.abs(x2 - x1) > MAX_DELTA || Math.abs(y2 - y1) > MAX_DELTA) {
+			check(false, "pair is within FAST_DISTANCE_MAX_DELTA", x1, y1, x2, y2, Double.NaN, Double.NaN);
+			return;
+		}
+
+		checked++;
+
+		double exact = GeoMath.haversine(x1, y1, Math.cos(x1), x2, y2, Math.cos(x2));
+		double fast = GeoMath.fastDistance(x1, y1, x2, y2);
+
+		if (exact > 0) {
+			double error = fast / exact - 1;
+			worstLonger = Math.max(worstLonger, error);
+			worstShorter = Math.max(worstShorter, -error);
+		}
+
+		check(fast <= exact * (1 + GeoMath.FAST_DISTANCE_ERROR), "fastDistance is within FAST_DISTANCE_ERROR",
+				x1, y1, x2, y2, fast, exact);
+		check(fast >= exact * (1 - ROUNDING), "fastDistance is not shorter than greatCircle",
+				x1, y1, x2, y2, fast, exact);
+		check(!GeoMath.fastFurtherThan(x1, y1, x2, y2, exact), "fastFurtherThan keeps a pair at the limit",
+				x1, y1, x2, y2, fast, exact);
+	}
+
+	private static void check(boolean ok, String what, double x1, double y1, double x2, double y2,
+			double fast, double exact) {
+		if (!ok) {
+			failures++;
+			// don't flood the output if the bound is broken everywhere
+			if (reported++ < 20) {
+				System.out.println("FAILED: " + what + ": (" + x1 + ", " + y1 + ") to (" + x2 + ", " + y2
+						+ "): fastDistance " + fast + ", greatCircle " + exact);
+			}
+		}
+	}
+}
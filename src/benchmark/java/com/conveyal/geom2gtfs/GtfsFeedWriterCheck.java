@@ -0,0 +1,202 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * Checks that the zip files GtfsFeedWriter assembles by hand read back through java.util.zip as the tables it
+ * writes. The same feed is written to a zip file and to a directory; every entry of the zip file, read both with
+ * ZipFile (through the central directory) and with ZipInputStream (through the local headers), must match the
+ * directory's file byte for byte, and the stop times must be the rows expected. The feed has a table with no rows
+ * and a stop_times.txt many deflate blocks long.
+ *
+ * Run it with the benchmark sources compiled:
+ *
+ *   mvn -Pbenchmarks compile exec:java -Dexec.mainClass=com.conveyal.geom2gtfs.GtfsFeedWriterCheck
+ *
+ * It exits with status 1 if any check fails.
+ */
+public class GtfsFeedWriterCheck {
+	private static final int TRIPS = 2000;
+	private static final int STOPS_PER_TRIP = 100;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("geom2gtfs-check").toFile();
+		try {
+			File zipFile = new File(dir, "gtfs.zip");
+			File tableDir = new File(dir, "gtfs");
+
+			List<String> expectedStopTimes = writeFeed(new GtfsFeedWriter(zipFile));
+			writeFeed(new GtfsFeedWriter(tableDir));
+
+			check(zipFile.isFile(), "zip file was written");
+			File[] leftovers = dir.listFiles();
+			check(leftovers != null && leftovers.length == 2, "temporary tables were removed: " + Arrays.toString(leftovers));
+
+			checkZipFile(zipFile, tableDir);
+			checkZipInputStream(zipFile, tableDir);
+
+			ZipFile zip = new ZipFile(zipFile);
+			try {
+				String stopTimes = new String(read(zip.getInputStream(zip.getEntry("stop_times.txt"))),
+						StandardCharsets.UTF_8);
+				List<String> rows = Arrays.asList(stopTimes.split("\n"));
+				check(rows.equals(expectedStopTimes), "stop_times.txt has the expected rows");
+				check(stopTimes.length() > 4 << 20, "stop_times.txt is several deflate blocks long");
+
+				String frequencies = new String(read(zip.getInputStream(zip.getEntry("frequencies.txt"))),
+						StandardCharsets.UTF_8);
+				check(frequencies.equals("trip_id,start_time,end_time,headway_secs,exact_times\n"),
+						"frequencies.txt has only its header");
+			} finally {
+				zip.close();
+			}
+		} finally {
+			delete(dir);
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+
+	/**
+	 * Write a feed with awkward field values, a table with no rows and many stop times.
+	 * @return the rows of stop_times.txt that should come out, formatted independently of the writer
+	 */
+	private static List<String> writeFeed(GtfsFeedWriter writer) throws IOException {
+		Agency agency = new Agency();
+		agency.setId(Main.DEFAULT_AGENCY_ID);
+		agency.setName("Check, \"quoted\"");
+		agency.setUrl("http://example.com");
+		agency.setTimezone("America/Los_Angeles");
+		writer.writeAgency(agency);
+
+		Route route = new Route();
+		route.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, "route"));
+		route.setAgency(agency);
+		route.setShortName("line\nbreak");
+		route.setType(3);
+		writer.writeRoute(route);
+
+		Stop[] stops = new Stop[STOPS_PER_TRIP];
+		for (int i = 0; i < stops.length; i++) {
+			stops[i] = new Stop();
+			stops[i].setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, "stop," + i));
+			stops[i].setName("Stop " + i);
+			stops[i].setLat(47.61 + i * 1e-5);
+			stops[i].setLon(i * 1e-6);
+			writer.writeStop(stops[i]);
+		}
+
+		writer.open("frequencies.txt", "trip_id,start_time,end_time,headway_secs,exact_times");
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+		for (int t = 0; t < TRIPS; t++) {
+			Trip trip = new Trip();
+			trip.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, String.valueOf(t)));
+			trip.setRoute(route);
+			trip.setServiceId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, Main.DEFAULT_CAL_ID));
+			writer.writeTrip(trip);
+
+			for (int i = 0; i < STOPS_PER_TRIP; i++) {
+				// run past midnight
+				int time = 20 * 3600 + t * 17 + i * 45;
+				writer.writeStopTime(trip, stops[i], i, time, time);
+				String hms = String.format("%02d:%02d:%02d", time / 3600, time / 60 % 60, time % 60);
+				expected.add(t + "," + hms + "," + hms + ",\"stop," + i + "\"," + i);
+			}
+		}
+
+		writer.close();
+		return expected;
+	}
+
+	/** Read each entry through the central directory, and compare it with the table written to the directory */
+	private static void checkZipFile(File zipFile, File tableDir) throws IOException {
+		ZipFile zip = new ZipFile(zipFile);
+		try {
+			TreeSet<String> names = new TreeSet<String>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				names.add(entry.getName());
+				byte[] expected = Files.readAllBytes(new File(tableDir, entry.getName()).toPath());
+				byte[] actual = read(zip.getInputStream(entry));
+				check(Arrays.equals(expected, actual), entry.getName() + " read through ZipFile matches");
+				check(entry.getSize() == expected.length, entry.getName() + " has the right size");
+			}
+			check(names.equals(new TreeSet<String>(Arrays.asList(tableDir.list()))), "zip has every table");
+		} finally {
+			zip.close();
+		}
+	}
+
+	/** Read each entry through its local header, and compare it with the table written to the directory */
+	private static void checkZipInputStream(File zipFile, File tableDir) throws IOException {
+		ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile));
+		try {
+			int count = 0;
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				count++;
+				byte[] expected = Files.readAllBytes(new File(tableDir, entry.getName()).toPath());
+				check(Arrays.equals(expected, read(in)), entry.getName() + " read through ZipInputStream matches");
+			}
+			check(count == tableDir.list().length, "ZipInputStream found every table");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
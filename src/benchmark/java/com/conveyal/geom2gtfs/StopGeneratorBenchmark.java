@@ -0,0 +1,102 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Placing stops along a single long route with each stop generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StopGeneratorBenchmark {
+	/** the number of vertices in the route */
+	@Param({ "1000", "20000" })
+	public int vertices;
+
+	/** the distance between vertices of the route, in meters */
+	@Param({ "20" })
+	public double step;
+
+	/** the spacing between stops, in meters */
+	@Param({ "200" })
+	public int spacing;
+
+	private ExtendedFeature route;
+	private List<List<ExtendedFeature>> groups;
+
+	private PicketStopGenerator picket;
+	private ShapefileStopGenerator shapefile;
+	private ClusterStopGenerator cluster;
+	private ClusterStopGenerator clusterTwoPass;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticNetwork network = new SyntheticNetwork(42);
+		LineString line = network.line(vertices, step);
+		route = network.route(line, "benchmark");
+		groups = Collections.singletonList(Collections.singletonList(route));
+
+		JSONObject data = new JSONObject();
+		data.put("spacing", spacing);
+		picket = new PicketStopGenerator(data);
+
+		// stops up to 20m off the line, with a 30m (~0.0003 degree) search buffer
+		shapefile = new ShapefileStopGenerator(network.stopsAlong(line, spacing, 20), 0.0003);
+
+		cluster = new ClusterStopGenerator(data);
+
+		JSONObject twoPass = new JSONObject();
+		twoPass.put("spacing", spacing);
+		twoPass.put("two_pass", true);
+		clusterTwoPass = new ClusterStopGenerator(twoPass);
+	}
+
+	@Benchmark
+	public ProtoRoute picket() throws Exception {
+		return picket.makeProtoRoute(route, 10.0);
+	}
+
+	@Benchmark
+	public ProtoRoute shapefile() throws Exception {
+		return shapefile.makeProtoRoute(route, 10.0);
+	}
+
+	/**
+	 * The cluster generator snaps to the stops it has already made, so it is reset each time to create the stops
+	 * rather than only find them.
+	 */
+	@Benchmark
+	public ProtoRoute cluster() throws Exception {
+		cluster.reset();
+		return cluster.makeProtoRoute(route, 10.0);
+	}
+
+	/** Placing the stops in two passes, as runs with two_pass set do, and then making the route from them */
+	@Benchmark
+	public ProtoRoute clusterTwoPass() throws Exception {
+		clusterTwoPass.reset();
+		clusterTwoPass.prepare(groups, 1);
+		return clusterTwoPass.makeProtoRoute(route, 10.0);
+	}
+}
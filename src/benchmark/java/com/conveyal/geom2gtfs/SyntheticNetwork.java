@@ -0,0 +1,124 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Generates synthetic route lines and stops for benchmarks, so that they don't depend on any input files.
+ * Everything is generated from a seed, so every run sees the same network.
+ */
+public class SyntheticNetwork {
+	/** roughly the middle of Seattle */
+	private static final double CENTER_LON = -122.33;
+	private static final double CENTER_LAT = 47.61;
+
+	private static final double METERS_PER_DEGREE = 111111;
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private static final SimpleFeatureType ROUTE_TYPE;
+	private static final SimpleFeatureType STOP_TYPE;
+
+	static {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("routes");
+		builder.setCRS(DefaultGeographicCRS.WGS84);
+		builder.add("the_geom", MultiLineString.class);
+		builder.add("ROUTE", String.class);
+		ROUTE_TYPE = builder.buildFeatureType();
+
+		builder = new SimpleFeatureTypeBuilder();
+		builder.setName("stops");
+		builder.setCRS(DefaultGeographicCRS.WGS84);
+		builder.add("the_geom", Point.class);
+		STOP_TYPE = builder.buildFeatureType();
+	}
+
+	private Random random;
+
+	public SyntheticNetwork(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Make a line that wanders away from the center of the network.
+	 * @param vertices the number of vertices in the line
+	 * @param step the distance between vertices, in meters
+	 */
+	public LineString line(int vertices, double step) {
+		Coordinate[] coords = new Coordinate[vertices];
+		double x = CENTER_LON + (random.nextDouble() - 0.5) * 0.1;
+		double y = CENTER_LAT + (random.nextDouble() - 0.5) * 0.1;
+		double heading = random.nextDouble() * 2 * Math.PI;
+		double stepDegrees = step / METERS_PER_DEGREE;
+
+		for (int i = 0; i < vertices; i++) {
+			coords[i] = new Coordinate(x, y);
+			heading += (random.nextDouble() - 0.5) * 0.5;
+			x += Math.cos(heading) * stepDegrees / Math.cos(Math.toRadians(y));
+			y += Math.sin(heading) * stepDegrees;
+		}
+
+		return geometryFactory.createLineString(coords);
+	}
+
+	/** Wrap a line in a route feature, as if it had been read from a shapefile */
+	public ExtendedFeature route(LineString line, String routeId) {
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(ROUTE_TYPE);
+		builder.add(geometryFactory.createMultiLineString(new LineString[] { line }));
+		builder.add(routeId);
+		return new ExtendedFeature(builder.buildFeature(routeId), null);
+	}
+
+	/**
+	 * Make stop features scattered along and around a line, as if they had been read from a stops shapefile.
+	 * @param spacing the average distance between stops along the line, in meters
+	 * @param offset the maximum distance from the line to each stop, in meters
+	 */
+	public List<Feature> stopsAlong(LineString line, double spacing, double offset) {
+		List<Feature> ret = new ArrayList<Feature>();
+		Coordinate[] coords = line.getCoordinates();
+
+		double sinceLast = 0;
+		for (int i = 1; i < coords.length; i++) {
+			sinceLast += GeoMath.greatCircle(coords[i - 1], coords[i]);
+			if (sinceLast < spacing)
+				continue;
+
+			sinceLast = 0;
+			double offsetDegrees = offset / METERS_PER_DEGREE;
+			Coordinate stop = new Coordinate(
+					coords[i].x + (random.nextDouble() * 2 - 1) * offsetDegrees,
+					coords[i].y + (random.nextDouble() * 2 - 1) * offsetDegrees);
+
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(STOP_TYPE);
+			builder.add(geometryFactory.createPoint(stop));
+			ret.add(builder.buildFeature("stop_" + ret.size()));
+		}
+
+		return ret;
+	}
+
+	/** random coordinates around the center of the network, as lon, lat pairs */
+	public double[] points(int count) {
+		double[] ret = new double[count * 2];
+		for (int i = 0; i < count; i++) {
+			ret[i * 2] = CENTER_LON + (random.nextDouble() - 0.5) * 0.5;
+			ret[i * 2 + 1] = CENTER_LAT + (random.nextDouble() - 0.5) * 0.5;
+		}
+		return ret;
+	}
+}
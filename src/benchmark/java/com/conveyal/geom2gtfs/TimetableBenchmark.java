@@ -0,0 +1,155 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the stop times of exact-mode trips, and writing a whole feed of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimetableBenchmark {
+	/** the number of routes in the feed */
+	@Param({ "50" })
+	public int routes;
+
+	/** the number of trips on each route */
+	@Param({ "100" })
+	public int tripsPerRoute;
+
+	/** the number of vertices in each route, at 20m apart */
+	@Param({ "2000" })
+	public int vertices;
+
+	private List<ProtoRoute> protoRoutes = new ArrayList<ProtoRoute>();
+	private Map<ProtoRouteStop, Stop> prsStops = new HashMap<ProtoRouteStop, Stop>();
+
+	private GtfsQueue queue;
+
+	private File outputDir;
+
+	@Setup
+	public void setup() throws Exception {
+		SyntheticNetwork network = new SyntheticNetwork(42);
+
+		JSONObject data = new JSONObject();
+		data.put("spacing", 200);
+		PicketStopGenerator stopGenerator = new PicketStopGenerator(data);
+
+		Agency agency = new Agency();
+		agency.setId(Main.DEFAULT_AGENCY_ID);
+		agency.setName("Benchmark");
+		agency.setUrl("http://example.com");
+		agency.setTimezone("America/Los_Angeles");
+
+		queue = new GtfsQueue();
+		queue.agencies.add(agency);
+
+		for (int r = 0; r < routes; r++) {
+			String routeId = "route_" + r;
+			ProtoRoute protoRoute = stopGenerator.makeProtoRoute(
+					network.route(network.line(vertices, 20), routeId), 10.0);
+			protoRoutes.add(protoRoute);
+
+			GtfsQueue fragment = new GtfsQueue();
+
+			Route route = new Route();
+			route.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, routeId));
+			route.setShortName(routeId);
+			route.setAgency(agency);
+			route.setType(3);
+			fragment.routes.add(route);
+
+			for (ProtoRouteStop prs : protoRoute.ret) {
+				fragment.stops.add(prs.stop);
+				prsStops.put(prs, prs.stop);
+			}
+
+			List<ProtoRoute> segments = new ArrayList<ProtoRoute>();
+			segments.add(protoRoute);
+			int pattern = fragment.stoptimes.addPattern(Main.makePattern(segments, prsStops, false));
+
+			for (int t = 0; t < tripsPerRoute; t++) {
+				Trip trip = new Trip();
+				trip.setRoute(route);
+				trip.setServiceId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, Main.DEFAULT_CAL_ID));
+				trip.setDirectionId("0");
+				fragment.trips.add(trip);
+				fragment.stoptimes.addTrip(trip, pattern, 6 * 3600 + t * 600);
+			}
+
+			queue.append(fragment);
+		}
+
+		outputDir = Files.createTempDirectory("geom2gtfs-benchmark").toFile();
+	}
+
+	@TearDown
+	public void tearDown() {
+		File[] files = outputDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		outputDir.delete();
+	}
+
+	/** Compute the travel times along every route, in both directions */
+	@Benchmark
+	public int makePatterns() {
+		int size = 0;
+		for (ProtoRoute protoRoute : protoRoutes) {
+			List<ProtoRoute> segments = new ArrayList<ProtoRoute>();
+			segments.add(protoRoute);
+			size += Main.makePattern(segments, prsStops, false).size();
+			size += Main.makePattern(segments, prsStops, true).size();
+		}
+		return size;
+	}
+
+	/** Write the whole feed to a directory */
+	@Benchmark
+	public void write() throws IOException {
+		GtfsFeedWriter gtfsWriter = new GtfsFeedWriter(outputDir);
+		queue.dumpToWriter(gtfsWriter);
+		gtfsWriter.close();
+	}
+
+	/** Write the whole feed to a zip file */
+	@Benchmark
+	public void writeZip() throws IOException {
+		GtfsFeedWriter gtfsWriter = new GtfsFeedWriter(new File(outputDir, "gtfs.zip"));
+		queue.dumpToWriter(gtfsWriter);
+		gtfsWriter.close();
+	}
+}
@@ -0,0 +1,85 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of ints keyed by distance, for best-first searches of spatial indices. Entries with the same
+ * distance come out in order of a secondary key. The heap is backed by primitive arrays, so adding and removing
+ * entries doesn't allocate once it has grown to the size of a search.
+ */
+class BestFirstQueue {
+    private double[] keys = new double[16];
+    private long[] orders = new long[16];
+    private int[] values = new int[16];
+    private int size = 0;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** the smallest key in the queue, which must not be empty */
+    public double peekKey() {
+        return keys[0];
+    }
+
+    public void add(double key, long order, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            orders = Arrays.copyOf(orders, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        // sift up
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(key, order, keys[parent], orders[parent]))
+                break;
+            set(i, keys[parent], orders[parent], values[parent]);
+            i = parent;
+        }
+        set(i, key, order, value);
+    }
+
+    /** remove the entry with the smallest key, and return its value */
+    public int poll() {
+        int ret = values[0];
+        size--;
+
+        double key = keys[size];
+        long order = orders[size];
+        int value = values[size];
+
+        // sift down the last entry from the root
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && less(keys[child + 1], orders[child + 1], keys[child], orders[child]))
+                child++;
+            if (!less(keys[child], orders[child], key, order))
+                break;
+            set(i, keys[child], orders[child], values[child]);
+            i = child;
+        }
+        if (size > 0)
+            set(i, key, order, value);
+
+        return ret;
+    }
+
+    private void set(int i, double key, long order, int value) {
+        keys[i] = key;
+        orders[i] = order;
+        values[i] = value;
+    }
+
+    private static boolean less(double key1, long order1, double key2, long order2) {
+        return key1 < key2 || (key1 == key2 && order1 < order2);
+    }
+}
@@ -6,20 +6,25 @@ import com.conveyal.osmlib.Way;
 import com.vividsolutions.jts.geom.*;
 import com.vividsolutions.jts.index.SpatialIndex;
 import com.vividsolutions.jts.index.quadtree.Quadtree;
-import com.vividsolutions.jts.linearref.LinearLocation;
-import com.vividsolutions.jts.linearref.LocationIndexedLine;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.onebusaway.csv_entities.EntityHandler;
-import org.onebusaway.csv_entities.exceptions.CsvEntityIOException;
-import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
-import org.onebusaway.gtfs.serialization.GtfsReader;
 import org.opengis.feature.GeometryAttribute;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A stop generator that creates stops at roughly the requested spacing
@@ -28,15 +33,38 @@ import java.util.List;
  * @author mattwigway
  */
 public class ClusterStopGenerator implements StopGenerator {
-    // this is final because the subclass stoploader accesses it.
-    public final SpatialIndex stopIndex;
-    public SpatialIndex wayIndex;
+    /**
+     * Existing stops further than this from the route, in meters, are assumed to be on a different street.
+     * TODO arbitrary hardcoded cutoff for distance from route
+     */
+    private static final double MAX_DISTANCE_FROM_ROUTE = 50;
+    
+    public StopGridIndex stopIndex;
+    public PackedWayIndex wayIndex;
     public SpatialIndex createdStopIndex;
     
     private JSONObject data;
     
-    private static GeometryFactory geometryFactory =
-            new GeometryFactory(new PrecisionModel(PrecisionModel.FIXED), 4326);
+    private FeatureRule<Integer> spacingRule;
+    
+    /**
+     * ways projected into their local frames, made as they are first snapped to and kept for later routes. Threads
+     * may race to make the same line, which is harmless: lines are immutable, and their final fields make them
+     * safe to read from any thread that sees them.
+     */
+    private LocalFrameLine[] wayLines;
+    
+    /**
+     * the stops placed by prepare() in two-pass mode, by feature. Routes are generated on several threads, and
+     * each feature's stops are dropped once its route has been made, so they don't stay on the heap for the rest
+     * of the run.
+     */
+    private Map<ExtendedFeature, FeatureStops> prepared =
+            Collections.synchronizedMap(new IdentityHashMap<ExtendedFeature, FeatureStops>());
+    
+    /** stops loaded from GTFS feeds, which every feed generated by this generator can snap to */
+    private List<Stop> loadedStops;
+    
     /**
      * How far to each side of the route we look for candidate stops, in meters.
      */
@@ -47,110 +75,172 @@ public class ClusterStopGenerator implements StopGenerator {
      */
     public boolean createUnmatchedStops;
     
-    public ClusterStopGenerator(JSONObject data) {
+    /**
+     * Should we place the stops of all routes before generating any of them? Otherwise each route finds or creates
+     * its stops as it is generated, which is how stops have always been placed.
+     */
+    public boolean twoPass;
+    
+    public ClusterStopGenerator(JSONObject data) throws IOException {
         this.data = data;
+        this.spacingRule = Config.compileSpacing(data);
         
-        stopIndex = new Quadtree();
-        wayIndex = new Quadtree();
         createdStopIndex = new Quadtree();
         threshold = data.has("threshold") ? data.getDouble("threshold") : 100D;
         createUnmatchedStops = data.has("create_stops") ? data.getBoolean("create_stops") : true;
+        twoPass = data.has("two_pass") ? data.getBoolean("two_pass") : false;
+        
+        // reuse the indices from a previous run against the same input files, if there is one
+        File cacheFile = data.has("index_cache") ? new File(data.getString("index_cache")) : null;
+        String cacheKey = SnappingIndexCache.key(data);
+        SnappingIndexCache cache = cacheFile != null ? SnappingIndexCache.read(cacheFile, cacheKey) : null;
         
+        if (cache != null) {
+            System.err.println("Using cached indices from " + cacheFile);
+            wayIndex = cache.wayIndex;
+        }
+        else {
+            wayIndex = new PackedWayIndex();
+            List<Stop> gtfsStops = new ArrayList<Stop>();
+            loadInputs(gtfsStops);
+            cache = new SnappingIndexCache(wayIndex, gtfsStops);
+            
+            if (cacheFile != null) {
+                System.err.println("Saving indices to " + cacheFile);
+                cache.write(cacheFile, cacheKey);
+            }
+        }
+        
+        loadedStops = cache.stops;
+        wayLines = new LocalFrameLine[wayIndex.size()];
+        reset();
+    }
+    
+    /**
+     * Forget the stops created for the routes generated so far. The loaded stops are inserted into a new index in
+     * the same order as when the generator was made, so the next feed comes out as it would from a new generator.
+     */
+    @Override
+    public void reset() {
+        StopGridIndex index = new StopGridIndex();
+        for (Stop stop : loadedStops) {
+            index.insert(stop.getLon(), stop.getLat(), stop);
+        }
+        stopIndex = index;
+        prepared = Collections.synchronizedMap(new IdentityHashMap<ExtendedFeature, FeatureStops>());
+    }
+    
+    /**
+     * Build the way index from the OSM files, and load the stops from the GTFS files.
+     */
+    private void loadInputs(List<Stop> gtfsStops) {
         // Load OSM files
         if (data.has("osmfiles")) {
          JSONArray files = data.getJSONArray("osmfiles");
             for (int i = 0; i < files.length(); i++) {
                 String fn = files.getString(i);
                 System.err.println("Processing OSM file " + fn);
-
-                // store OSM in temporary file
-                OSM osm = new OSM(null);
-                osm.intersectionDetection = true;
-                osm.readFromFile(fn);
-
-                for (Way way : osm.ways.values()) {
-                    // todo: pedestrian = no
-                    if (way.hasTag("highway") && !"motorway".equals(way.getTag("highway"))
-                            && way.nodes.length >= 2) {
-                        
-                        // create wayinfo                        
-                        WayInfo wi = new WayInfo();
-                        wi.coords = new Coordinate[way.nodes.length];
-                        wi.intersections = new boolean[way.nodes.length];
-                        
-                        for (int coordIdx = 0; coordIdx < way.nodes.length; coordIdx++) {
-                            Node node = osm.nodes.get(way.nodes[coordIdx]);
-                            wi.coords[coordIdx] = new Coordinate(node.getLon(), node.getLat());
-                            wi.intersections[coordIdx] = osm.intersectionNodes.contains(way.nodes[coordIdx]);
-                        }
-                        
-                        LineString ls = geometryFactory.createLineString(wi.coords);                                                
-                        wayIndex.insert(ls.getEnvelopeInternal(), wi);
-                    }
-                }
+                loadOsm(fn);
             }
         }
         
-        // Load GTFS files        
-        if (data.has("gtfsfiles")) {
+        wayIndex.build();
         
+        // Load GTFS files, reading just the stops, all the feeds at once
+        if (data.has("gtfsfiles")) {
             JSONArray files = data.getJSONArray("gtfsfiles");
+            List<String> fileNames = new ArrayList<String>();
             for (int fileIdx = 0; fileIdx < files.length(); fileIdx++) {
-                String fileName = files.getString(fileIdx);
-                System.err.println("Processing GTFS file " + fileName);
+                fileNames.add(files.getString(fileIdx));
+            }
+            
+            System.err.println("Processing GTFS files " + fileNames);
+            gtfsStops.addAll(GtfsStopLoader.load(fileNames));
+        }
+    }
+    
+    /**
+     * Copy the streets from an OSM file into the way index. Only the way index holds on to anything once this
+     * returns, so the OSM object graph for each file can be garbage collected before the next one is read.
+     */
+    private void loadOsm(String fn) {
+        // store OSM in temporary file
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(fn);
+
+        for (Way way : osm.ways.values()) {
+            // todo: pedestrian = no
+            if (way.hasTag("highway") && !"motorway".equals(way.getTag("highway"))
+                    && way.nodes.length >= 2) {
                 
-                try {
-                    GtfsReader reader = new GtfsReader();
-                    reader.setInputLocation(new File(fileName));
-                    reader.addEntityHandler(new StopLoader(fileIdx));
-                    reader.run();
-                } catch (CsvEntityIOException e) {
-                    Throwable cause = e.getCause();
-                    if (cause instanceof AllStopsLoadedException) {
-                        // this is expected; all the stops have been loaded.
-                        System.err.println("Loaded " + ((AllStopsLoadedException) cause).count + " stops" );
-                    } else {
-                        // rethrow
-                        throw e;
-                    }
-                } catch (IOException e) {
-                    System.err.println("Unable to load GTFS file " + fileName);
+                double[] lons = new double[way.nodes.length];
+                double[] lats = new double[way.nodes.length];
+                boolean[] intersections = new boolean[way.nodes.length];
+                
+                for (int coordIdx = 0; coordIdx < way.nodes.length; coordIdx++) {
+                    Node node = osm.nodes.get(way.nodes[coordIdx]);
+                    lons[coordIdx] = node.getLon();
+                    lats[coordIdx] = node.getLat();
+                    intersections[coordIdx] = osm.intersectionNodes.contains(way.nodes[coordIdx]);
                 }
+                
+                wayIndex.add(lons, lats, intersections);
             }
         }
     }
     
-    @Override
-    public ProtoRoute makeProtoRoute(ExtendedFeature exft, Double speed) throws Exception {
-        ProtoRoute out = new ProtoRoute();
-        out.speed = speed;
+    /**
+     * The stops of a feature: the ideal stop locations along its line, and, once prepare() has placed them, the
+     * stop at each.
+     */
+    private static class FeatureStops {
+        LocalFrameLine line;
+        double length;
+        int size = 0;
+        /** how far along the line each location is, in meters */
+        double[] offsets = new double[16];
+        Coordinate[] ideals = new Coordinate[16];
+        /** the stop at each location, or null if there is none */
+        Stop[] stops;
+        /** where a stop would be created at each location that has no loaded stop, or null if none would be */
+        Coordinate[] createAt;
 
-        // find candidate stops
+        void add(double offset, Coordinate ideal) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                ideals = Arrays.copyOf(ideals, size * 2);
+            }
+            offsets[size] = offset;
+            ideals[size] = ideal;
+            size++;
+        }
+    }
+
+    /** Find the ideal stop locations along the line of a feature, at the requested spacing. */
+    private FeatureStops idealStops(ExtendedFeature exft) {
         GeometryAttribute geomAttr = exft.feat.getDefaultGeometryProperty();
         MultiLineString geom = (MultiLineString) geomAttr.getValue();
         
         LineString ls = (LineString) geom.getGeometryN(0);
-        LocationIndexedLineInLocalCoordinateSystem indexed = new LocationIndexedLineInLocalCoordinateSystem(ls.getCoordinates());
-                
-        // figure out the offsets to each coordinate in the line
         Coordinate[] coords = ls.getCoordinates();
-        double[] metersAlongLine = new double[coords.length];
         
-        metersAlongLine[0] = 0; // by construction, the first coordinate is 0 meters along the line
-        
-        for (int i = 1; i < coords.length; i++) {
-            metersAlongLine[i] = metersAlongLine[i - 1] + GeoMath.greatCircle(coords[i - 1], coords[i]);
-        }
+        FeatureStops ret = new FeatureStops();
+        ret.line = new LocalFrameLine(coords);
+                
+        // figure out the offsets to each coordinate in the line
+        double[] metersAlongLine = GeoMath.cumulativeLengths(coords);
         
-        out.length = metersAlongLine[metersAlongLine.length - 1];
+        ret.length = metersAlongLine[metersAlongLine.length - 1];
         
-        double spacing = Config.getSpacing(exft, this.data);
+        double spacing = spacingRule.evaluate(exft);
         
-        // find stops near each "ideal" location on the line
+        // offsets only increase, so the search for the segment containing each one picks up where the last one
+        // left off, and the whole loop makes a single pass over the line.
+        int right = 1;
         for (double offset = 0; offset < metersAlongLine[metersAlongLine.length - 1]; offset += spacing) {
             // find the point for which we want to find a protoroutestop
-            int right = 1;
-            while (metersAlongLine[right] < offset && right < metersAlongLine.length)
+            while (right < metersAlongLine.length - 1 && metersAlongLine[right] < offset)
                 right++;
             
             double length = (metersAlongLine[right] - metersAlongLine[right - 1]);
@@ -166,11 +256,37 @@ public class ClusterStopGenerator implements StopGenerator {
                 ideal = coords[right];
             }
             
-            ProtoRouteStop prs = getProtoRouteStopForCoord(ideal, indexed);
+            ret.add(offset, ideal);
+        }
+        
+        return ret;
+    }
+    
+    @Override
+    public ProtoRoute makeProtoRoute(ExtendedFeature exft, Double speed) throws Exception {
+        ProtoRoute out = new ProtoRoute();
+        out.speed = speed;
+
+        // in two-pass mode, features passed to prepare() already have their stops; others find or create them now
+        FeatureStops placed = prepared.remove(exft);
+        FeatureStops stops = placed != null ? placed : idealStops(exft);
+        LocalFrameLine.Projection projection = new LocalFrameLine.Projection();
+        
+        out.length = stops.length;
+        
+        // find stops near each "ideal" location on the line
+        for (int i = 0; i < stops.size; i++) {
+            ProtoRouteStop prs;
+            if (placed != null) {
+                prs = placed.stops[i] != null ? new ProtoRouteStop(placed.stops[i], 0) : null;
+            } else {
+                prs = getProtoRouteStopForCoord(stops.ideals[i], stops.line, projection);
+            }
             
             if (prs != null) {
-                // don't add the same stop twice in a row.
-                if (!out.ret.isEmpty() && prs.stop.equals(out.ret.get(out.ret.size() - 1).stop))
+                // don't add the same stop twice in a row. The index holds one object per stop, so this compares
+                // identities rather than ids, which another thread may be renaming as it appends its route.
+                if (!out.ret.isEmpty() && prs.stop == out.ret.get(out.ret.size() - 1).stop)
                     continue;
                 
                 // set the distance appropriately
@@ -178,7 +294,7 @@ public class ClusterStopGenerator implements StopGenerator {
                 // Note that we do not set the distance to this stop, but rather the distance to the ideal location
                 // of this stop. this avoids issues with loop routes, where the same stop might have multiple distances
                 // distance just needs to be monotonically increasing, no need to be super-accurate in a ratio sense.
-                prs.dist = offset;
+                prs.dist = stops.offsets[i];
                 out.add(prs);
             }
         }
@@ -187,202 +303,341 @@ public class ClusterStopGenerator implements StopGenerator {
     }
 
     /**
-     * Find the best stop near the given coordinate.
+     * In two-pass mode, place the stops of every route before any route is generated, so that which routes share which created
+     * stops depends neither on the order in which the routes are generated nor on the number of threads that
+     * generate them.
+     *
+     * 1. On several threads, find the ideal stop locations along each feature. Each location takes the nearest
+     *    loaded stop on the route if there is one, and otherwise notes where a stop would be created: on the
+     *    nearest way, or at the location itself.
+     * 2. On one thread, merge the stops to be created into shared stops on a grid. They are visited in order of
+     *    where they would be created, not in order of their routes, and each takes the nearest stop already
+     *    created on its route within the threshold, or creates its own.
+     * 3. Number the created stops in the order their routes will be appended, which is the numbering GtfsQueue
+     *    would give them, so that their ids are final before the routes are generated on several threads.
+     *
+     * Loaded stops always win over created ones within the threshold, and created stops are merged in order of
+     * their location rather than route by route, so the stops differ from those placed one route at a time.
+     * Otherwise, this does nothing and each route places its stops as it is generated.
      */
-    private ProtoRouteStop getProtoRouteStopForCoord(Coordinate ideal, LocationIndexedLineInLocalCoordinateSystem routeGeometry) {
-        // first look for existing nearby stops
-        Envelope env = new Envelope(ideal);
+    @Override
+    public void prepare(List<List<ExtendedFeature>> groups, int threads) throws Exception {
+        if (!twoPass)
+            return;
         
-        // get the upper bound
-        double thresholdDegrees = GeoMath.upperBoundDegreesForThreshold(ideal.y, threshold);
-        env.expandBy(thresholdDegrees);
-
-        @SuppressWarnings("unchecked")
-        List<Stop> stops = stopIndex.query(env);
+        final List<ExtendedFeature> features = new ArrayList<ExtendedFeature>();
+        for (List<ExtendedFeature> group : groups) {
+            features.addAll(group);
+        }
         
-        if (!stops.isEmpty()) {
-            // hooray we found existing stops!
-            double bestDistance = Double.MAX_VALUE;
-            Stop best = null;
-            
-            for (Stop stop : stops) {
-                Coordinate stopCoord = new Coordinate(stop.getLon(), stop.getLat());
-                double dist = GeoMath.greatCircle(stopCoord, ideal);
-
-                // make sure it's not on a completely different street
-                Coordinate pointOnRoute = routeGeometry.extractPoint(routeGeometry.project(stopCoord));
-                double distFromRoute = GeoMath.greatCircle(stopCoord, pointOnRoute);
-
-                // TODO arbitrary hardcoded cutoff for distance from route
-                if (dist < bestDistance && dist <= threshold && distFromRoute < 50) {
-                    bestDistance = dist;
-                    best = stop;
-                }
+        // pass 1: ideal locations, loaded stops and where to create stops, a feature at a time on each thread
+        FeatureStops[] placed = new FeatureStops[features.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<FeatureStops>> futures = new ArrayList<Future<FeatureStops>>();
+            for (final ExtendedFeature exft : features) {
+                futures.add(executor.submit(new Callable<FeatureStops>() {
+                    @Override
+                    public FeatureStops call() {
+                        return findLoadedStops(exft);
+                    }
+                }));
             }
             
-            if (best != null) {
-                return new ProtoRouteStop(best, 0);
+            for (int i = 0; i < placed.length; i++) {
+                try {
+                    placed[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
             }
+        } finally {
+            executor.shutdownNow();
         }
         
-
-        // Look for nearby ways
+        // pass 2: merge the stops to be created
+        mergeCreatedStops(placed);
         
+        // pass 3: number the created stops in the order they will first be appended
+        int createdStops = 0;
+        Map<ExtendedFeature, FeatureStops> ret = new IdentityHashMap<ExtendedFeature, FeatureStops>();
+        for (int f = 0; f < placed.length; f++) {
+            for (Stop stop : placed[f].stops) {
+                if (stop != null && ProtoRouteStop.isProvisional(stop)) {
+                    GtfsQueue.nameCreatedStop(stop, ++createdStops);
+                }
+            }
+            
+            // only the stops and their offsets are needed to make the route
+            placed[f].line = null;
+            placed[f].ideals = null;
+            placed[f].createAt = null;
+            ret.put(features.get(f), placed[f]);
+        }
         
-        @SuppressWarnings("unchecked")
-        List<WayInfo> ways = wayIndex.query(env);
+        prepared = Collections.synchronizedMap(ret);
+    }
 
-        Coordinate bestPoint = null;
+    /**
+     * For each ideal stop location along a feature, find the nearest loaded stop on the route, or else where a
+     * stop would be created. The stop index only holds loaded stops while this runs, so it is only searched.
+     */
+    private FeatureStops findLoadedStops(ExtendedFeature exft) {
+        final FeatureStops ret = idealStops(exft);
+        ret.stops = new Stop[ret.size];
+        ret.createAt = new Coordinate[ret.size];
         
-        if (!ways.isEmpty()) {
-            // OK, snap to nearest way
-            // note that the spatial index only contains walkable ways
-
-            Coordinate point;
-            int left, right;
-            LinearLocation loc;
-            double bestDistance = Double.MAX_VALUE;
-            double dist, leftDist, rightDist;
-            
-            for (WayInfo wayInfo : ways) {
-                LocationIndexedLineInLocalCoordinateSystem way =
-                        new LocationIndexedLineInLocalCoordinateSystem(wayInfo.coords);
-                loc = way.project(ideal);
-                point = way.extractPoint(loc);
-                dist = GeoMath.greatCircle(point, ideal);
+        final LocalFrameLine.Projection projection = new LocalFrameLine.Projection();
+        StopGridIndex.FindOrCreate findOnly = new StopGridIndex.FindOrCreate() {
+            @Override
+            public boolean accept(Stop stop) {
+                return isNearRoute(stop, ret.line, projection);
+            }
 
-                if (dist < bestDistance && dist <= threshold) {
-                    bestDistance = dist;
-                    bestPoint = point;
-                    
-                    // we don't blithely add one to the right segment index, because this isn't
-                    // actually a segment index; if the point is past the end of the line the
-                    // segment index is the index of the last coordinate
-                    // AFAIK segment index cannot be negative.
-                    left = right = loc.getSegmentIndex();
-                    
-                    // but check and give a useful error message in case my assumption is incorrect.
-                    if (left < 0) {
-                        throw new RuntimeException("Got negative segment index.");
-                    }
-                    
-                    // find the next and previous intersections, if they exist
-                    while (!wayInfo.intersections[left] && left > 0) left--;
-                    while (!wayInfo.intersections[right] && right < wayInfo.coords.length - 1) right++;
-                    
-                    leftDist = GeoMath.greatCircle(wayInfo.coords[left], ideal);
-                    rightDist = GeoMath.greatCircle(wayInfo.coords[right], ideal);
-                    
-                    if ((left == right || leftDist <= rightDist) && leftDist <= threshold) {
-                        // we don't reset bestDistance but instead leave it as the distance to the
-                        // nearest point on the way. So we're saying "snap to an intersection, if possible,
-                        // on the closest way"
-                        bestPoint = wayInfo.coords[left];
-                    }
-                    
-                    else if (rightDist <= leftDist && rightDist <= threshold) {
-                        bestPoint = wayInfo.coords[right];
-                    }
-                    
-                }
+            @Override
+            public Stop create() {
+                return null;
             }
-        }
+        };
         
-        // if we didn't find anything to snap to, deal with it
-        if (bestPoint == null) {
-            if (createUnmatchedStops) {
+        for (int i = 0; i < ret.size; i++) {
+            Coordinate ideal = ret.ideals[i];
+            Envelope env = searchEnvelope(ideal);
+            ret.stops[i] = stopIndex.findOrCreate(env, ideal.x, ideal.y, threshold, findOnly);
+            if (ret.stops[i] != null)
+                continue;
+            
+            Coordinate bestPoint = snapToWay(ideal, env, projection);
+            if (bestPoint == null && createUnmatchedStops) {
                 bestPoint = ideal;
             }
-            else {
+            
+            if (bestPoint == null) {
                 System.err.println("Could not find stop location near " + ideal.y + ", " + ideal.x);
-                return null;
             }
+            ret.createAt[i] = bestPoint;
         }
         
-        ProtoRouteStop prs = new ProtoRouteStop(bestPoint, 0);
+        return ret;
+    }
+
+    /**
+     * Create the stops that the features need and no loaded stop provides, sharing them between features. The
+     * stops are created in order of where they would be created, with ties broken by the order of the features.
+     */
+    private void mergeCreatedStops(final FeatureStops[] placed) {
+        List<int[]> toCreate = new ArrayList<int[]>();
+        for (int f = 0; f < placed.length; f++) {
+            for (int i = 0; i < placed[f].size; i++) {
+                if (placed[f].stops[i] == null && placed[f].createAt[i] != null) {
+                    toCreate.add(new int[] { f, i });
+                }
+            }
+        }
         
-        // add the newly-created stop to the index
-        stopIndex.insert(new Envelope(prs.coord), prs.stop);
+        Collections.sort(toCreate, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                Coordinate c1 = placed[o1[0]].createAt[o1[1]];
+                Coordinate c2 = placed[o2[0]].createAt[o2[1]];
+                int c = c1.compareTo(c2);
+                if (c != 0)
+                    return c;
+                
+                c = placed[o1[0]].ideals[o1[1]].compareTo(placed[o2[0]].ideals[o2[1]]);
+                if (c != 0)
+                    return c;
+                
+                return o1[0] != o2[0] ? Integer.compare(o1[0], o2[0]) : Integer.compare(o1[1], o2[1]);
+            }
+        });
         
-        return prs;
+        StopGridIndex created = new StopGridIndex();
+        final LocalFrameLine.Projection projection = new LocalFrameLine.Projection();
+        for (int[] location : toCreate) {
+            final FeatureStops feature = placed[location[0]];
+            final Coordinate createAt = feature.createAt[location[1]];
+            Coordinate ideal = feature.ideals[location[1]];
+            
+            feature.stops[location[1]] = created.findOrCreate(searchEnvelope(ideal), ideal.x, ideal.y, threshold,
+                    new StopGridIndex.FindOrCreate() {
+                @Override
+                public boolean accept(Stop stop) {
+                    return isNearRoute(stop, feature.line, projection);
+                }
+
+                @Override
+                public Stop create() {
+                    return ProtoRouteStop.provisionalStop(createAt.y, createAt.x);
+                }
+            });
+        }
     }
-    
+
     /**
-     * Holds just enough information about a way to be able to snap to its nodes.
-     * @author mattwigway
-     *
+     * Thread safe: in two-pass mode prepare() places every stop before routes are generated, and otherwise the stop
+     * index finds or creates each stop atomically, and the way index is only read. Without two-pass mode, which
+     * route creates a shared stop, and so exactly where it is, can depend on the order in which routes are
+     * generated, so the output can vary from run to run when routes are generated on several threads.
      */
-    private static class WayInfo {
-        public Coordinate[] coords;
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /** the envelope in which to look for stops and ways near an ideal stop location */
+    private Envelope searchEnvelope(Coordinate ideal) {
+        Envelope env = new Envelope(ideal);
         
-        /** intersections[i] is true if node i is an intersection, false otherwise */
-        public boolean[] intersections;
+        // get the upper bound
+        double thresholdDegrees = GeoMath.upperBoundDegreesForThreshold(ideal.y, threshold);
+        env.expandBy(thresholdDegrees);
+        return env;
     }
-    
+
     /**
-     * Load just the stops from a GTFS feed.
-     * 
-     * Once all stops have been loaded, raises an AllStopsLoadedException to prevent loading the
-     * rest of the feed.
+     * Find the best stop near the given coordinate, or create one. Finding and creating are one atomic step of the
+     * stop index, so that routes generated on several threads share the stops they create just as routes generated
+     * one after another do.
+     * @param projection is overwritten by each projection onto the route or a way, to save allocating results.
      */
-    private class StopLoader implements EntityHandler {
-        private int gtfsFile;
-        private int count;
+    private ProtoRouteStop getProtoRouteStopForCoord(final Coordinate ideal, final LocalFrameLine routeGeometry,
+            final LocalFrameLine.Projection projection) {
+        final Envelope env = searchEnvelope(ideal);
+
+        // existing stops come out nearest first, so the first one that is on the route is the best; where stops
+        // are equally near, the one added to the index first wins
+        Stop stop = stopIndex.findOrCreate(env, ideal.x, ideal.y, threshold, new StopGridIndex.FindOrCreate() {
+            @Override
+            public boolean accept(Stop stop) {
+                return isNearRoute(stop, routeGeometry, projection);
+            }
+
+            @Override
+            public Stop create() {
+                Coordinate bestPoint = snapToWay(ideal, env, projection);
+                
+                // if we didn't find anything to snap to, deal with it
+                if (bestPoint == null) {
+                    if (!createUnmatchedStops)
+                        return null;
+                    bestPoint = ideal;
+                }
+                
+                return ProtoRouteStop.provisionalStop(bestPoint.y, bestPoint.x);
+            }
+        });
         
-        /**
-         * Construct a new StopLoader
-         * @param gtfsFile Stop IDs will be prefixed with this to avoid namespace collisions.
-         */
-        public StopLoader (int gtfsFile) {
-            count = 0;
-            this.gtfsFile = gtfsFile;
+        if (stop == null) {
+            System.err.println("Could not find stop location near " + ideal.y + ", " + ideal.x);
+            return null;
         }
         
-        @Override
-        public void handleEntity(Object o) {
-            if (o instanceof Stop) {
-                Stop stop = (Stop) o;
+        return new ProtoRouteStop(stop, 0);
+    }
+
+    /** Is the stop close enough to the route to be on the same street? */
+    private static boolean isNearRoute(Stop stop, LocalFrameLine routeGeometry, LocalFrameLine.Projection projection) {
+        double stopX = Math.toRadians(stop.getLon());
+        double stopY = Math.toRadians(stop.getLat());
+
+        routeGeometry.project(stop.getLon(), stop.getLat(), projection);
+        double routeX = Math.toRadians(projection.x);
+        double routeY = Math.toRadians(projection.y);
+        if (GeoMath.fastFurtherThan(stopX, stopY, routeX, routeY, MAX_DISTANCE_FROM_ROUTE))
+            return false;
+
+        double distFromRoute =
+                GeoMath.haversine(stopX, stopY, Math.cos(stopX), routeX, routeY, Math.cos(routeX));
+
+        return distFromRoute < MAX_DISTANCE_FROM_ROUTE;
+    }
+
+    /**
+     * Find where to put a new stop on the nearest way within the threshold: the nearest intersection on that way,
+     * if there is one within the threshold, or the nearest point on it.
+     * @return the point, or null if there are no ways near enough.
+     */
+    private Coordinate snapToWay(Coordinate ideal, Envelope env, LocalFrameLine.Projection projection) {
+        // distances are all measured to the ideal point, so it is only converted to radians once
+        double idealX = Math.toRadians(ideal.x);
+        double idealY = Math.toRadians(ideal.y);
+        double cosIdealX = Math.cos(idealX);
+
+        // ways come out in order of the distance to their bounding boxes, so once that is further than the best
+        // point found so far, no other way can have a nearer one
+        PackedWayIndex.NearestSearch nearbyWays = wayIndex.nearest(env, ideal.x, ideal.y);
+
+        Coordinate bestPoint = null;
+        
+        // note that the spatial index only contains walkable ways
+        int left, right;
+        double bestDistance = Double.MAX_VALUE;
+        int bestRank = Integer.MAX_VALUE;
+        double dist, leftDist, rightDist;
+        
+        int wayIdx;
+        while ((wayIdx = nearbyWays.next(Math.min(bestDistance, threshold))) >= 0) {
+            LocalFrameLine way = wayLines[wayIdx];
+            if (way == null) {
+                way = new LocalFrameLine(wayIndex, wayIdx);
+                wayLines[wayIdx] = way;
+            }
+            way.project(ideal.x, ideal.y, projection);
+
+            double pointX = Math.toRadians(projection.x);
+            double pointY = Math.toRadians(projection.y);
+            if (GeoMath.fastFurtherThan(pointX, pointY, idealX, idealY, threshold))
+                continue;
+
+            dist = GeoMath.haversine(pointX, pointY, Math.cos(pointX), idealX, idealY, cosIdealX);
+
+            // where ways are equally near, keep the one the envelope query used to find first
+            if (dist <= threshold &&
+                    (dist < bestDistance || (dist == bestDistance && nearbyWays.rank() < bestRank))) {
+                bestDistance = dist;
+                bestRank = nearbyWays.rank();
+                bestPoint = new Coordinate(projection.x, projection.y);
+                
+                // we don't blithely add one to the right segment index, because this isn't
+                // actually a segment index; if the point is past the end of the line the
+                // segment index is the index of the last coordinate
+                // AFAIK segment index cannot be negative.
+                left = right = projection.segmentIndex;
                 
-                // don't snap to stations
-                if (stop.getLocationType() == 1)
-                    return;
+                // but check and give a useful error message in case my assumption is incorrect.
+                if (left < 0) {
+                    throw new RuntimeException("Got negative segment index.");
+                }
                 
-                count++;
+                // find the next and previous intersections, if they exist
+                int lastVertex = wayIndex.getVertexCount(wayIdx) - 1;
+                while (!wayIndex.isIntersection(wayIdx, left) && left > 0) left--;
+                while (!wayIndex.isIntersection(wayIdx, right) && right < lastVertex) right++;
                 
-                // referential integrity
-                stop.setParentStation(null);
+                Coordinate leftCoord = wayIndex.getCoordinate(wayIdx, left);
+                Coordinate rightCoord = wayIndex.getCoordinate(wayIdx, right);
+                leftDist = GeoMath.greatCircle(leftCoord, idealX, idealY, cosIdealX);
+                rightDist = GeoMath.greatCircle(rightCoord, idealX, idealY, cosIdealX);
                 
-                Coordinate coord = new Coordinate(stop.getLon(), stop.getLat());
+                if ((left == right || leftDist <= rightDist) && leftDist <= threshold) {
+                    // we don't reset bestDistance but instead leave it as the distance to the
+                    // nearest point on the way. So we're saying "snap to an intersection, if possible,
+                    // on the closest way"
+                    bestPoint = leftCoord;
+                }
                 
-                AgencyAndId existingId = stop.getId();
-                AgencyAndId newId =
-                        new AgencyAndId(Main.DEFAULT_AGENCY_ID, 
-                                "" + gtfsFile + "_" + existingId.getId()
-                                );
-
-                stop.setId(newId);
+                else if (rightDist <= leftDist && rightDist <= threshold) {
+                    bestPoint = rightCoord;
+                }
                 
-                stopIndex.insert(new Envelope(coord), stop);
-            }
-            else if (count > 0) {
-                // OBA processes the files sequentially, so if we have seen a stop in the past
-                // but this is not a stop, we are done
-
-                throw new AllStopsLoadedException(count);
             }
         }
-    }
-    
-    /**
-     * Indicates that all the stops have been loaded.
-     * 
-     * This is unchecked because we can't throw an exception inside HandleEntity.
-     */
-    private static class AllStopsLoadedException extends RuntimeException {
-        public int count;
         
-        public AllStopsLoadedException (int count) {
-            this.count = count;
-        }
+        return bestPoint;
     }
 }
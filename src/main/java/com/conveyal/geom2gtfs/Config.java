@@ -6,8 +6,11 @@ import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -17,15 +20,191 @@ import org.opengis.feature.Feature;
 public class Config {
 	
 	JSONObject data;
-	private boolean DEFAULT_USE_PERIODS = false;
-	private double DEFAULT_WAIT_FACTOR = 1.0;
-	private boolean DEFAULT_EXACT = false; 
+	private static final boolean DEFAULT_USE_PERIODS = false;
+	private static final double DEFAULT_WAIT_FACTOR = 1.0;
+	private static final boolean DEFAULT_EXACT = false; 
+	private static final boolean DEFAULT_STREAMING = false;
+	private static final int DEFAULT_THREADS = 1;
 	private static final boolean DEFAULT_TOLERANT = true;
+	private static final int DEFAULT_PROGRESS_INTERVAL = 0;
+	private static final boolean DEFAULT_INCREMENTAL = false;
+
+	// settings used for every feature or route are compiled when the config is loaded
+	private FeatureRule<Integer> mode;
+	private FeatureRule<Double> speed;
+	private PropertyRef routeIdProperty;
+	private PropertyRef routeNameProperty;
+	private PropertyRef[] filterProperties;
+	private String[] filterValues;
+	private List<ServiceWindow> serviceWindows;
+	private boolean bidirectional;
+	private boolean usePeriods;
+	private double waitFactor;
+	private boolean exact;
+	private boolean tolerant;
+	private Double defaultServiceLevel;
+	private Set<String> featureProperties;
 
 	public Config(String config_fn) throws IOException {
 		File ff = new File(config_fn);
 		String jsonStr = new String( Files.readAllBytes( ff.toPath() ) );
 		data = new JSONObject( jsonStr );
+		compile();
+	}
+
+	private void compile() {
+		mode = compileMode();
+		speed = compileSpeed();
+		routeIdProperty = new PropertyRef(optString("route_id_prop_name"));
+		routeNameProperty = new PropertyRef(optString("route_name_prop_name"));
+		compileFilters();
+		compileServiceWindows();
+
+		bidirectional = data.optBoolean("is_bidirectional", false);
+		usePeriods = data.optBoolean("use_periods", DEFAULT_USE_PERIODS);
+		waitFactor = data.optDouble("wait_factor", DEFAULT_WAIT_FACTOR);
+		exact = data.optBoolean("exact", DEFAULT_EXACT);
+		tolerant = data.optBoolean("tolerant", DEFAULT_TOLERANT);
+
+		double serviceLevel = data.optDouble("service_level", Double.NaN);
+		defaultServiceLevel = Double.isNaN(serviceLevel) ? null : serviceLevel;
+
+		compileFeatureProperties();
+	}
+
+	/**
+	 * Collect the names of the feature properties that are read once features have been filtered: the route id
+	 * and name, the segment, the properties the mode, speed and spacing rules match on, and the service window
+	 * properties. Filter properties are only read while filtering, so they aren't among them.
+	 */
+	private void compileFeatureProperties() {
+		Set<String> ret = new LinkedHashSet<String>();
+		if (routeIdProperty.name != null)
+			ret.add(routeIdProperty.name);
+		if (routeNameProperty.name != null)
+			ret.add(routeNameProperty.name);
+		ret.add("segment");
+
+		addRuleProperties(data.get("gtfs_mode"), ret);
+		addRuleProperties(data.get("speed"), ret);
+		JSONObject stopGeneratorData = data.optJSONObject("stops");
+		if (stopGeneratorData != null && stopGeneratorData.has("spacing"))
+			addRuleProperties(stopGeneratorData.get("spacing"), ret);
+
+		for (ServiceWindow window : serviceWindows) {
+			ret.add(window.propName);
+		}
+
+		featureProperties = Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * Add the properties a rule setting reads: the property named by a string setting, or the properties matched
+	 * by a list of rules. Constant settings read none.
+	 */
+	private static void addRuleProperties(Object rules, Set<String> out) {
+		if (rules instanceof String) {
+			out.add((String) rules);
+		} else if (rules instanceof JSONArray) {
+			JSONArray array = (JSONArray) rules;
+			for (int i = 0; i < array.length(); i++) {
+				JSONArray filter = array.getJSONArray(i).getJSONArray(0);
+				if (!filter.getString(1).equals("*"))
+					out.add(filter.getString(0));
+			}
+		}
+	}
+
+	/** the value of a string property, or null if it is missing or not a string */
+	private String optString(String key) {
+		Object value = data.opt(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	private FeatureRule<Integer> compileMode() {
+		Object modeObj = data.get("gtfs_mode");
+		if( Integer.class.isInstance( modeObj) ){
+			return FeatureRule.constant((Integer) modeObj);
+		}
+		
+		// else it should be an array;
+		JSONArray gtfsModeFilters = (JSONArray)modeObj;
+		
+		List<FeatureRule.Matcher> matchers = new ArrayList<FeatureRule.Matcher>();
+		List<Integer> modes = new ArrayList<Integer>();
+		for(int i=0; i<gtfsModeFilters.length(); i++){
+			JSONArray gtfsModeFilter = gtfsModeFilters.getJSONArray(i);
+			matchers.add(compileMatcher(gtfsModeFilter.getJSONArray(0), false));
+			modes.add(gtfsModeFilter.getInt(1));
+		}
+		
+		return FeatureRule.firstMatch(matchers, modes);
+	}
+
+	private FeatureRule<Double> compileSpeed() {
+		Object speedObj = data.get("speed");
+		if(Double.class.isInstance(speedObj)){
+			return FeatureRule.constant((Double) speedObj);
+		}
+		
+		else if (Integer.class.isInstance(speedObj)) {
+		    return FeatureRule.constant(((Integer) speedObj).doubleValue());
+		}
+		
+		else if (String.class.isInstance(speedObj)) {
+			// the speed is the value of a property of each feature
+			final PropertyRef prop = new PropertyRef((String) speedObj);
+			return new FeatureRule<Double>() {
+				@Override
+				public Double evaluate(ExtendedFeature feat) {
+					return Double.parseDouble(feat.getProperty(prop));
+				}
+			};
+		}
+		
+		JSONArray gtfsModeFilters = (JSONArray)speedObj;
+		
+		List<FeatureRule.Matcher> matchers = new ArrayList<FeatureRule.Matcher>();
+		List<Double> speeds = new ArrayList<Double>();
+		for(int i=0; i<gtfsModeFilters.length(); i++){
+			JSONArray gtfsModeFilter = gtfsModeFilters.getJSONArray(i);
+			matchers.add(compileMatcher(gtfsModeFilter.getJSONArray(0), true));
+			speeds.add(gtfsModeFilter.getDouble(1));
+		}
+		
+		return FeatureRule.firstMatch(matchers, speeds);
+	}
+
+	private void compileFilters() {
+		JSONArray filters = data.optJSONArray("filters");
+		int count = filters != null ? filters.length() : 0;
+		
+		filterProperties = new PropertyRef[count];
+		filterValues = new String[count];
+		for(int i=0; i<count; i++){
+			JSONArray filter = filters.getJSONArray(i);
+			filterProperties[i] = new PropertyRef(filter.getString(0));
+			filterValues[i] = filter.getString(1);
+		}
+	}
+
+	private void compileServiceWindows() {
+		List<ServiceWindow> ret = new ArrayList<ServiceWindow>();
+		
+		JSONArray windows = data.getJSONArray("service_windows");
+		for(int i=0; i<windows.length(); i++){
+			JSONArray jWindow = windows.getJSONArray(i);
+			
+			ServiceWindow sw = new ServiceWindow();
+			sw.propName = jWindow.getString(0);
+			sw.property = new PropertyRef(sw.propName);
+			sw.setStartHour( jWindow.getInt(1) );
+			sw.setEndHour( jWindow.getInt(2) );
+			
+			ret.add(sw);
+		}
+		
+		serviceWindows = Collections.unmodifiableList(ret);
 	}
 
 	public String getAgencyName() {
@@ -53,33 +232,18 @@ public class Config {
 	}
 
 	public Integer getMode(ExtendedFeature feat) {
-		Object modeObj = data.get("gtfs_mode");
-		if( Integer.class.isInstance( modeObj) ){
-			return (Integer)modeObj;
-		}
-		
-		// else it should be an array;
-		JSONArray gtfsModeFilters = (JSONArray)modeObj;
-		
-		for(int i=0; i<gtfsModeFilters.length(); i++){
-			JSONArray gtfsModeFilter = gtfsModeFilters.getJSONArray(i);
-			JSONArray filter = gtfsModeFilter.getJSONArray(0);
-			Integer mode = gtfsModeFilter.getInt(1);
-			
-			String propName = filter.getString(0);
-			String propVal = filter.getString(1);
-			
-			if(propVal.equals("*")){ //star matches everything
-				return mode;
-			}
-			
-			String featPropVal = feat.getProperty(propName);
-			if(featPropVal!=null && featPropVal.equals(propVal)){
-				return mode;
-			}
+		return mode.evaluate(feat);
+	}
+	
+	/**
+	 * The name of the stop generation strategy, or null if the config doesn't specify one.
+	 */
+	public String getStopStrategy() {
+		try{
+			return data.getJSONObject("stops").getString("strategy");
+		} catch (JSONException ex){
+			return null;
 		}
-		
-		return null;
 	}
 	
 	public StopGenerator getStopGenerator() throws MalformedURLException, IOException{
@@ -135,107 +299,37 @@ public class Config {
 //	}
 
 	public Double getSpeed(ExtendedFeature feat) {
-		Object speedObj = data.get("speed");
-		if(Double.class.isInstance(speedObj)){
-			return (Double)speedObj;
-		}
-		
-		else if (Integer.class.isInstance(speedObj)) {
-		    return ((Integer) speedObj).doubleValue();
-		}
-		
-		else if (String.class.isInstance(speedObj)) {
-			return  Double.parseDouble(feat.getProperty((String) speedObj));
-		}
-		
-		JSONArray gtfsModeFilters = (JSONArray)speedObj;
-		
-		for(int i=0; i<gtfsModeFilters.length(); i++){
-			JSONArray gtfsModeFilter = gtfsModeFilters.getJSONArray(i);
-			JSONArray filter = gtfsModeFilter.getJSONArray(0);
-			Double speed = gtfsModeFilter.getDouble(1);
-			
-			String propName = filter.getString(0);
-			String propVal = filter.getString(1);
-			
-			if(propVal.equals("*")){ //star matches everything
-				return speed;
-			}
-			
-			Object featPropVal = feat.getPropertyRaw(propName);
-			if (featPropVal == null) {
-				if (propVal.equals("null"))
-					return speed;
-				else
-					continue;
-			}
-			
-			if (featPropVal instanceof Double) {
-				if (((Double) featPropVal).equals(Double.parseDouble(propVal))) {
-					return speed;
-				}
-				else {
-					continue;
-				}
-			}
-			
-			if (featPropVal instanceof Integer) {
-				if (((Integer) featPropVal).equals(Integer.parseInt(propVal))) {
-					return speed;
-				}
-				else {
-					continue;
-				}
-			}
-			
-			if(featPropVal.toString().equals(propVal)){
-				return speed;
-			}
-		}
-		
-		return null;
+		return speed.evaluate(feat);
 	}
 
 	public String getRouteIdPropName() {
-		try{
-			return data.getString("route_id_prop_name");
-		}catch(JSONException e){
-			return null;
-		}
+		return routeIdProperty.name;
+	}
+
+	/** the names of the feature properties that are read once features have been filtered */
+	public Set<String> getFeatureProperties() {
+		return featureProperties;
+	}
+
+	public PropertyRef getRouteIdProperty() {
+		return routeIdProperty;
 	}
 
 	public String getRouteNamePropName() {
-		try{
-			return data.getString("route_name_prop_name");
-		}catch(JSONException e){
-			return null;
-		}
+		return routeNameProperty.name;
+	}
+
+	public PropertyRef getRouteNameProperty() {
+		return routeNameProperty;
 	}
 
 	public boolean isBidirectional() {
-		try{
-			return data.getBoolean("is_bidirectional");
-		}catch(JSONException e){
-			return false;
-		}
+		return bidirectional;
 	}
 
+	/** The service windows, in the order they are listed in the config. The list is shared and can't be modified. */
 	public List<ServiceWindow> getServiceWindows() {
-		List<ServiceWindow> ret = new ArrayList<ServiceWindow>();
-		
-		JSONArray windows = data.getJSONArray("service_windows");
-		for(int i=0; i<windows.length(); i++){
-			JSONArray jWindow = windows.getJSONArray(i);
-			
-			ServiceWindow sw = new ServiceWindow();
-			sw.propName = jWindow.getString(0);
-			sw.setStartHour( jWindow.getInt(1) );
-			sw.setEndHour( jWindow.getInt(2) );
-			
-			ret.add(sw);
-		}
-		
-		return ret;
+		return serviceWindows;
 	}
 
 	public Date getStartDate() {
@@ -270,28 +364,13 @@ public class Config {
 	}
 
 	public boolean usePeriods() {
-		try{
-			return data.getBoolean("use_periods");
-		} catch (JSONException ex){
-			return DEFAULT_USE_PERIODS;
-		}
+		return usePeriods;
 	}
 
 	public boolean passesFilter(ExtendedFeature exft) {
-		JSONArray filters;
-		try{
-			filters = data.getJSONArray("filters");
-		} catch (JSONException ex){
-			return true;
-		}
-		
-		for(int i=0; i<filters.length(); i++){
-			JSONArray filter = filters.getJSONArray(i);
-			String propName = filter.getString(0);
-			String acceptable = filter.getString(1);
-			
-			String val = exft.getProperty(propName);
-			if(!val.equals(acceptable)){
+		for(int i=0; i<filterProperties.length; i++){
+			String val = exft.getProperty(filterProperties[i]);
+			if(!val.equals(filterValues[i])){
 				return false;
 			}
 		}
@@ -300,71 +379,119 @@ public class Config {
 	}
 
 	public double waitFactor() {
+		return waitFactor;
+	}
+
+	public boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * Should each route be written out as soon as it has been generated, rather than holding the
+	 * whole feed in memory until the end of the run?
+	 */
+	public boolean isStreaming() {
 		try{
-			return data.getDouble("wait_factor");
+			return data.getBoolean("streaming");
 		} catch (JSONException ex){
-			return DEFAULT_WAIT_FACTOR  ;
+			return DEFAULT_STREAMING;
 		}
 	}
 
-	public boolean isExact() {
+	/**
+	 * How many threads should be used to generate routes?
+	 */
+	public int getThreads() {
 		try{
-			return data.getBoolean("exact");
+			return data.getInt("threads");
 		} catch (JSONException ex){
-			return DEFAULT_EXACT   ;
+			return DEFAULT_THREADS;
 		}
 	}
 
-	public boolean tolerant() {
+	/**
+	 * Should routes whose features haven't changed since the last run be reused from that run rather than
+	 * generated again?
+	 */
+	public boolean isIncremental() {
+		try{
+			return data.getBoolean("incremental");
+		} catch (JSONException ex){
+			return DEFAULT_INCREMENTAL;
+		}
+	}
+
+	/**
+	 * Where should the JSON report of timings, counts and memory use be written? Null if no report is wanted.
+	 */
+	public String getReportFilename() {
+		try{
+			return data.getString("report");
+		} catch (JSONException ex){
+			return null;
+		}
+	}
+
+	/**
+	 * How often should progress be printed, in seconds? Zero means never.
+	 */
+	public int getProgressInterval() {
 		try{
-			return data.getBoolean("tolerant");
+			return data.getInt("progress_interval");
 		} catch (JSONException ex){
-			return DEFAULT_TOLERANT   ;
+			return DEFAULT_PROGRESS_INTERVAL;
 		}
 	}
+
+	public boolean tolerant() {
+		return tolerant;
+	}
 	
 	
 	/**
 	 * Get the default frequency for routes in this file.
 	 */
 	public Double getDefaultServiceLevel() {
-		try {
-			return data.getDouble("service_level");
-		} catch (JSONException e) {
-			return null;
-		}
+		return defaultServiceLevel;
 	}
 	
 	/**
-	 * Get the desired stop spacing for feature feat from the stop generator
-	 * configuration stopGeneratorData.
+	 * Compile the desired stop spacing from the stop generator configuration stopGeneratorData: either a single
+	 * spacing, or a list of rules matching the string values of feature properties.
 	 */
-	public static Integer getSpacing(ExtendedFeature feat, JSONObject stopGeneratorData) {
+	public static FeatureRule<Integer> compileSpacing(JSONObject stopGeneratorData) {
 	    Object spacingObj = stopGeneratorData.get("spacing");
 	    if (Integer.class.isInstance(spacingObj)) {
-	        return (Integer) spacingObj;
+	        return FeatureRule.constant((Integer) spacingObj);
 	    }
 
 	    JSONArray gtfsModeFilters = (JSONArray) spacingObj;
 
+	    List<FeatureRule.Matcher> matchers = new ArrayList<FeatureRule.Matcher>();
+	    List<Integer> spacings = new ArrayList<Integer>();
 	    for (int i = 0; i < gtfsModeFilters.length(); i++) {
 	        JSONArray gtfsModeFilter = gtfsModeFilters.getJSONArray(i);
-	        JSONArray filter = gtfsModeFilter.getJSONArray(0);
-	        Integer spacing = gtfsModeFilter.getInt(1);
+	        matchers.add(compileMatcher(gtfsModeFilter.getJSONArray(0), false));
+	        spacings.add(gtfsModeFilter.getInt(1));
+	    }
 
-	        String propName = filter.getString(0);
-	        String propVal = filter.getString(1);
+	    return FeatureRule.firstMatch(matchers, spacings);
+	}
 
-	        if (propVal.equals("*")) { // star matches everything
-	            return spacing;
-	        }
+	/**
+	 * Compile the [property, value] half of a rule. "*" matches everything.
+	 * @param typed compare numeric properties as numbers, and match missing properties to "null", as speed rules do.
+	 */
+	private static FeatureRule.Matcher compileMatcher(JSONArray filter, boolean typed) {
+		String propName = filter.getString(0);
+		String propVal = filter.getString(1);
 
-	        String featPropVal = feat.getProperty(propName);
-	        if (featPropVal != null && featPropVal.equals(propVal)) {
-	            return spacing;
-	        }
-	    }
+		if(propVal.equals("*")){ //star matches everything
+			return FeatureRule.MATCH_ALL;
+		}
 
-	    return null;
+		PropertyRef prop = new PropertyRef(propName);
+		return typed ? FeatureRule.typedMatcher(prop, propVal) : FeatureRule.stringMatcher(prop, propVal);
 	}
+
 }
@@ -0,0 +1,155 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Converts shapefiles to GTFS over HTTP, keeping stop generators and the indices they load between requests, so
+ * that each request only pays for generating its routes.
+ *
+ * POST a zip file to /convert containing the parts of a shapefile (.shp, .shx, .dbf and so on) and a config file
+ * named config.json; the response is the GTFS feed as a zip file. Any other files the config refers to, such as
+ * stop shapefiles, OSM and GTFS files and CSVs to join, are read from the server's filesystem, just as they
+ * would be by the command line tool.
+ *
+ * The server only listens on the loopback interface, and handles one request at a time. Routes are still
+ * generated on as many threads as the config asks for.
+ */
+public class ConversionServer {
+	public static final int DEFAULT_PORT = 8080;
+
+	private static final String CONFIG_FILENAME = "config.json";
+
+	private HttpServer server;
+
+	private StopGeneratorCache stopGenerators = new StopGeneratorCache();
+
+	public ConversionServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/convert", new ConvertHandler());
+
+		// with no executor, requests are handled one at a time on the server's own thread
+		server.setExecutor(null);
+	}
+
+	public void start() {
+		server.start();
+		System.out.println( "listening on " + server.getAddress() );
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private class ConvertHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			File dir = null;
+			try {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					sendError(exchange, 405, "POST a zip file containing a shapefile and " + CONFIG_FILENAME);
+					return;
+				}
+
+				dir = Files.createTempDirectory("geom2gtfs").toFile();
+				File shapefile = unzip(exchange.getRequestBody(), dir);
+				File config = new File(dir, CONFIG_FILENAME);
+
+				if (shapefile == null || !config.exists()) {
+					sendError(exchange, 400, "request must contain one .shp file and " + CONFIG_FILENAME);
+					return;
+				}
+
+				File output = new File(dir, "gtfs.zip");
+				new Main(stopGenerators).main(shapefile.getPath(), config.getPath(), output.getPath());
+
+				exchange.getResponseHeaders().set("Content-Type", "application/zip");
+				exchange.sendResponseHeaders(200, output.length());
+				OutputStream out = exchange.getResponseBody();
+				try {
+					Files.copy(output.toPath(), out);
+				} finally {
+					out.close();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				sendError(exchange, 500, e.toString());
+			} finally {
+				exchange.close();
+				if (dir != null) {
+					delete(dir);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Extract a zip file into a directory. Only the names of entries are used, not their paths, and entries named
+	 * "." or "..", which would be the directory itself or its parent, are skipped, so nothing can be written
+	 * outside the directory.
+	 * @return the shapefile, or null if there isn't exactly one.
+	 */
+	private static File unzip(InputStream in, File dir) throws IOException {
+		File shapefile = null;
+		int shapefiles = 0;
+
+		ZipInputStream zip = new ZipInputStream(in);
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (entry.isDirectory())
+					continue;
+
+				String name = new File(entry.getName()).getName();
+				if (name.isEmpty() || name.equals(".") || name.equals(".."))
+					continue;
+
+				File file = new File(dir, name);
+				Files.copy(zip, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+				if (file.getName().toLowerCase().endsWith(".shp")) {
+					shapefile = file;
+					shapefiles++;
+				}
+			}
+		} finally {
+			zip.close();
+		}
+
+		return shapefiles == 1 ? shapefile : null;
+	}
+
+	private static void sendError(HttpExchange exchange, int code, String message) {
+		try {
+			byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(code, body.length);
+			exchange.getResponseBody().write(body);
+		} catch (IOException e) {
+			// the response has already been started, or the client has gone away; nothing more can be sent
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -1,58 +1,120 @@
 package com.conveyal.geom2gtfs;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.opengis.feature.Feature;
 
+/**
+ * A CSV file whose rows are joined to features by a key column. The table is stored by column, with an index from
+ * key to row, so a feature only needs to remember the number of its row, and its joined properties are read
+ * straight out of the table.
+ */
 public class CsvJoinTable {
+	private static final int INITIAL_ROWS = 1024;
 
 	private String csvCol;
-	private String shpCol;
-	private Map<String, String[]> records;
-	private ArrayList<String> header;
+	private PropertyRef shpCol;
+
+	private String[] header;
+	/** column index by name; where names repeat, the last column wins */
+	private Map<String, Integer> columnIndex;
+	/** the cells of each column, by row; null where a row is shorter than the header */
+	private String[][] columns;
+	private int rows = 0;
+	/** row by key; where keys repeat, the last row wins */
+	private Map<String, Integer> rowIndex;
 
 	public CsvJoinTable(String filename, String csvCol, String shpCol) throws IOException {
 		this.csvCol = csvCol;
-		this.shpCol = shpCol;
-		this.records = new HashMap<String, String[]>();
-		
-		BufferedReader br = new BufferedReader(new FileReader(new File(filename)));
-		String headerStr = br.readLine();
-		header = new ArrayList<String>( Arrays.asList( headerStr.split(",") ) );
-		
-		int keyCol = header.indexOf(this.csvCol);
-		
-		String line;
-		while ((line = br.readLine()) != null) {
-		   String[] row = line.split(",");
-		   String key = row[keyCol];
-		   records.put(key, row);
+		this.shpCol = new PropertyRef(shpCol);
+		this.rowIndex = new HashMap<String, Integer>();
+
+		CsvReader reader = new CsvReader(new FileReader(new File(filename)));
+		try {
+			header = reader.readRecord();
+			if (header == null)
+				throw new IOException("csv join file " + filename + " is empty");
+
+			columnIndex = new HashMap<String, Integer>();
+			for (int i = 0; i < header.length; i++) {
+				columnIndex.put(header[i], i);
+			}
+
+			Integer keyCol = columnIndex.get(this.csvCol);
+			if (keyCol == null)
+				throw new IOException("csv join file " + filename + " has no column " + this.csvCol);
+
+			columns = new String[header.length][INITIAL_ROWS];
+
+			String[] record;
+			int recordNumber = 1;
+			while ((record = reader.readRecord()) != null) {
+				recordNumber++;
+				if (record.length == 1 && record[0].isEmpty())
+					continue; // blank line
+
+				// a row too short to have a key can't be joined to anything
+				if (keyCol >= record.length) {
+					System.err.println("csv join file " + filename + ": record " + recordNumber + " has no "
+							+ this.csvCol + ", skipping it");
+					continue;
+				}
+
+				addRow(record);
+				rowIndex.put(record[keyCol], rows - 1);
+			}
+		} finally {
+			reader.close();
+		}
+
+		// trim the columns to fit
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = Arrays.copyOf(columns[i], rows);
 		}
-		br.close();
 	}
 
-	public Map<String,String> getExtraFields(Feature feat) {
-		Map<String,String> ret = new HashMap<String,String>();
-		
-		String key = feat.getProperty(shpCol).getValue().toString();
-		String[] fields = records.get(key);
-		if( fields==null ){
-			return ret;
+	private void addRow(String[] record) {
+		if (rows == columns[0].length) {
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = Arrays.copyOf(columns[i], rows * 2);
+			}
 		}
-		
-		for(int i=0; i<header.size(); i++){
-			String kk = header.get(i);
-			String vv = fields[i];
-			ret.put(kk, vv);
+
+		int n = Math.min(record.length, header.length);
+		for (int i = 0; i < n; i++) {
+			columns[i][rows] = record[i];
+		}
+		rows++;
+	}
+
+	/** @return the row joined to the feature, or -1 if there is none */
+	public int getRow(Feature feat) {
+		Object key = shpCol.getValue(feat);
+		if (key == null)
+			return -1;
+
+		Integer row = rowIndex.get(key.toString());
+		return row != null ? row : -1;
+	}
+
+	/** @return the value of a column in a row, or null if there is no such column or the row is too short */
+	public String get(int row, String column) {
+		Integer col = columnIndex.get(column);
+		return col != null ? columns[col][row] : null;
+	}
+
+	/** @return a copy of a row as a map from column name to value; for when all of a row is needed at once */
+	public Map<String, String> getFields(int row) {
+		Map<String, String> ret = new HashMap<String, String>();
+		for (int i = 0; i < header.length; i++) {
+			if (columns[i][row] != null) {
+				ret.put(header[i], columns[i][row]);
+			}
 		}
 		return ret;
 	}
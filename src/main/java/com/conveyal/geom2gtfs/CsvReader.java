@@ -0,0 +1,120 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads records from a CSV file one at a time, following RFC 4180: fields may be quoted, and quoted fields may
+ * contain commas, line breaks and doubled quotes. Lines may end in \n or \r\n. The input is read through a buffer
+ * of its own, so the reader needn't be buffered. A byte order mark at the start of the input is skipped.
+ */
+public class CsvReader {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Reader in;
+	private final char[] buf = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int len = 0;
+	private boolean started = false;
+
+	/** the field being read; reused from field to field */
+	private final StringBuilder field = new StringBuilder();
+	/** the fields of the record being read; reused from record to record */
+	private final List<String> fields = new ArrayList<String>();
+
+	/** The input is not valid CSV, as opposed to not being readable at all */
+	public static class MalformedCsvException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public MalformedCsvException(String message) {
+			super(message);
+		}
+	}
+
+	public CsvReader(Reader in) {
+		this.in = in;
+	}
+
+	/** @return the next character, or -1 at the end of the input */
+	private int read() throws IOException {
+		if (pos == len) {
+			len = in.read(buf, 0, buf.length);
+			pos = 0;
+			if (len <= 0) {
+				len = 0;
+				return -1;
+			}
+		}
+		return buf[pos++];
+	}
+
+	/** @return the next character without consuming it, or -1 at the end of the input */
+	private int peek() throws IOException {
+		int c = read();
+		if (c != -1)
+			pos--;
+		return c;
+	}
+
+	/**
+	 * Read the next record. Empty fields are empty strings; a blank line is a record with one empty field.
+	 * @return the fields of the record, or null at the end of the input.
+	 */
+	public String[] readRecord() throws IOException {
+		int c = read();
+		if (!started) {
+			// skip the byte order mark some tools write at the start of UTF-8 files
+			started = true;
+			if (c == '\uFEFF')
+				c = read();
+		}
+		if (c == -1)
+			return null;
+
+		fields.clear();
+		field.setLength(0);
+		boolean quoted = false;
+
+		while (true) {
+			if (quoted) {
+				if (c == -1)
+					throw new MalformedCsvException("unterminated quoted field in CSV record " + fields);
+
+				if (c == '"') {
+					if (peek() == '"') {
+						// a doubled quote is a literal quote
+						read();
+						field.append('"');
+					} else {
+						quoted = false;
+					}
+				} else {
+					field.append((char) c);
+				}
+			} else if (c == '"' && field.length() == 0) {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\n' || c == -1) {
+				break;
+			} else if (c == '\r' && peek() == '\n') {
+				read();
+				break;
+			} else {
+				field.append((char) c);
+			}
+
+			c = read();
+		}
+
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
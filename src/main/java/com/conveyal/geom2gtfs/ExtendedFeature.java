@@ -1,34 +1,43 @@
 package com.conveyal.geom2gtfs;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
 
 /**
  * 
- * ExtendedFeature is a opengis Feature plus a map of additional properties.
+ * ExtendedFeature is a opengis Feature plus a row of additional properties joined from a CSV file.
  * Useful for doing data joins outside the shapefile.
  * 
  */
 public class ExtendedFeature {
 
-	private Map<String, String> extraFields;
+	private CsvJoinTable csvJoin;
+	/** the row of csvJoin joined to this feature, or -1 if there is none */
+	private int row;
 	Feature feat;
 
 	public ExtendedFeature(Feature feat, CsvJoinTable csvJoin) {
 		this.feat = feat;
-		if (csvJoin != null) {
-			this.extraFields = csvJoin.getExtraFields(feat);
-		} else {
-			this.extraFields = null;
-		}
+		this.csvJoin = csvJoin;
+		this.row = csvJoin != null ? csvJoin.getRow(feat) : -1;
+	}
+
+	/**
+	 * Replace the feature with one cut down by the projection, once it has been joined and filtered. The joined
+	 * row is kept, so joined properties are still found.
+	 */
+	public void project(FeatureProjection projection) {
+		feat = projection.apply((SimpleFeature) feat);
 	}
 
 	/** get a raw property */
 	public Object getPropertyRaw (String key) {
-		if (extraFields != null) {
-			String ret = extraFields.get(key);
+		if (row >= 0) {
+			String ret = csvJoin.get(row, key);
 			if (ret != null) {
 				return ret;
 			}
@@ -42,9 +51,37 @@ public class ExtendedFeature {
 		return val;
 	}
 	
+	/**
+	 * a copy of the properties joined to this feature, empty if no row matched, or null if there is no join
+	 * table
+	 */
+	public Map<String, String> getExtraFields() {
+		if (csvJoin == null) {
+			return null;
+		}
+		return row >= 0 ? csvJoin.getFields(row) : new HashMap<String, String>();
+	}
+
 	public String getProperty(String key) {
 		Object val = getPropertyRaw(key);
 		return val != null ? val.toString() : null;
 	}
 
+	/** get a raw property, looked up through a reference compiled from the config */
+	public Object getPropertyRaw (PropertyRef ref) {
+		if (row >= 0) {
+			String ret = csvJoin.get(row, ref.name);
+			if (ret != null) {
+				return ret;
+			}
+		}
+
+		return ref.getValue(feat);
+	}
+
+	public String getProperty(PropertyRef ref) {
+		Object val = getPropertyRaw(ref);
+		return val != null ? val.toString() : null;
+	}
+
 }
@@ -0,0 +1,73 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+/**
+ * Cuts features down to their default geometry and a given set of attributes, so that features kept for the
+ * whole run don't hold on to attributes nothing will read. The cut-down feature type is made once for each type
+ * of feature projected, and shared by all the features made from it.
+ */
+public class FeatureProjection {
+
+	private final Set<String> keep;
+
+	/** the type last projected, and what it projects to; features from one shapefile all have the same type */
+	private SimpleFeatureType sourceType;
+	private SimpleFeatureType targetType;
+	/** the index in the source type of each attribute of the target type */
+	private int[] sourceIndices;
+
+	/** @param keep the names of the attributes to keep, besides the default geometry */
+	public FeatureProjection(Set<String> keep) {
+		this.keep = keep;
+	}
+
+	public SimpleFeature apply(SimpleFeature feature) {
+		SimpleFeatureType type = feature.getFeatureType();
+		if (type != sourceType) {
+			init(type);
+		}
+
+		Object[] values = new Object[sourceIndices.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = feature.getAttribute(sourceIndices[i]);
+		}
+		return SimpleFeatureBuilder.build(targetType, values, feature.getID());
+	}
+
+	private void init(SimpleFeatureType type) {
+		GeometryDescriptor geometry = type.getGeometryDescriptor();
+
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(type.getName());
+		builder.setCRS(type.getCoordinateReferenceSystem());
+
+		List<Integer> indices = new ArrayList<Integer>();
+		for (int i = 0; i < type.getAttributeCount(); i++) {
+			AttributeDescriptor descriptor = type.getDescriptor(i);
+			if (descriptor == geometry || keep.contains(descriptor.getLocalName())) {
+				builder.add(descriptor);
+				indices.add(i);
+			}
+		}
+		if (geometry != null) {
+			builder.setDefaultGeometry(geometry.getLocalName());
+		}
+
+		sourceIndices = new int[indices.size()];
+		for (int i = 0; i < sourceIndices.length; i++) {
+			sourceIndices[i] = indices.get(i);
+		}
+		targetType = builder.buildFeatureType();
+		sourceType = type;
+	}
+}
@@ -0,0 +1,112 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.List;
+
+/**
+ * A setting from the config whose value can depend on the properties of a feature, such as the speed of a route.
+ * The config gives either a single value, or a list of [[property, value], result] rules, the first of which to
+ * match the feature decides its value. Rules are compiled once when the config is loaded, so evaluating them for
+ * a feature never touches the JSON.
+ */
+public abstract class FeatureRule<T> {
+
+	/** @return the value of the setting for the feature, or null if no rule matches it */
+	public abstract T evaluate(ExtendedFeature feat);
+
+	/** the same value for every feature */
+	public static <T> FeatureRule<T> constant(final T value) {
+		return new FeatureRule<T>() {
+			@Override
+			public T evaluate(ExtendedFeature feat) {
+				return value;
+			}
+		};
+	}
+
+	/** the value of the first rule whose matcher matches the feature */
+	public static <T> FeatureRule<T> firstMatch(List<Matcher> matchers, final List<T> values) {
+		final Matcher[] matcherArray = matchers.toArray(new Matcher[matchers.size()]);
+		return new FeatureRule<T>() {
+			@Override
+			public T evaluate(ExtendedFeature feat) {
+				for (int i = 0; i < matcherArray.length; i++) {
+					if (matcherArray[i].matches(feat)) {
+						return values.get(i);
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	/** The [property, value] half of a rule */
+	public static abstract class Matcher {
+		public abstract boolean matches(ExtendedFeature feat);
+	}
+
+	/** "*" matches every feature */
+	public static final Matcher MATCH_ALL = new Matcher() {
+		@Override
+		public boolean matches(ExtendedFeature feat) {
+			return true;
+		}
+	};
+
+	/** Matches features whose property, as a string, is the given value */
+	public static Matcher stringMatcher(final PropertyRef prop, final String value) {
+		return new Matcher() {
+			@Override
+			public boolean matches(ExtendedFeature feat) {
+				String featValue = feat.getProperty(prop);
+				return featValue != null && featValue.equals(value);
+			}
+		};
+	}
+
+	/**
+	 * Matches features according to the type of their property: numeric properties are compared to the value as a
+	 * number, and features without the property match the value "null".
+	 */
+	public static Matcher typedMatcher(final PropertyRef prop, final String value) {
+		final Double doubleValue = parseDouble(value);
+		final Integer intValue = parseInt(value);
+		return new Matcher() {
+			@Override
+			public boolean matches(ExtendedFeature feat) {
+				Object featValue = feat.getPropertyRaw(prop);
+				if (featValue == null)
+					return value.equals("null");
+
+				if (featValue instanceof Double) {
+					if (doubleValue == null)
+						throw new NumberFormatException("can't compare numeric property " + prop.name + " to " + value);
+					return featValue.equals(doubleValue);
+				}
+
+				if (featValue instanceof Integer) {
+					if (intValue == null)
+						throw new NumberFormatException("can't compare integer property " + prop.name + " to " + value);
+					return featValue.equals(intValue);
+				}
+
+				return featValue.toString().equals(value);
+			}
+		};
+	}
+
+	private static Double parseDouble(String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static Integer parseInt(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -3,42 +3,200 @@ package com.conveyal.geom2gtfs;
 import com.vividsolutions.jts.geom.Coordinate;
 
 public class GeoMath {
+	/** each degree on a great circle of Earth is 60 nautical miles */
+	static final double METERS_PER_RADIAN = 60 * 1852 * 180 / Math.PI;
+
+	/**
+	 * fastDistance is only used for points that are no more than this many radians apart in x and in y
+	 * (about 12km), and within that range it is never more than FAST_DISTANCE_ERROR (as a fraction)
+	 * longer than greatCircle. The bound is (FAST_DISTANCE_MAX_DELTA^2) / 6; GeoMathCheck in the benchmark sources
+	 * checks it against greatCircle, including close to where the cosine of x is zero and at the largest delta.
+	 */
+	static final double FAST_DISTANCE_MAX_DELTA = 0.002;
+	static final double FAST_DISTANCE_ERROR = 1e-6;
+
 	static double greatCircle(double x1deg, double y1deg, double x2deg, double y2deg){
         double x1 = Math.toRadians(x1deg);
         double y1 = Math.toRadians(y1deg);
         double x2 = Math.toRadians(x2deg);
         double y2 = Math.toRadians(y2deg);
-		
-		// haversine formula
-	    double a = Math.pow(Math.sin((x2-x1)/2), 2)
-	             + Math.cos(x1) * Math.cos(x2) * Math.pow(Math.sin((y2-y1)/2), 2);
-	
-	    // great circle distance in radians
-	    double angle2 = 2 * Math.asin(Math.min(1, Math.sqrt(a)));
-	
-	    // convert back to degrees
-	    angle2 = Math.toDegrees(angle2);
-	
-	    // each degree on a great circle of Earth is 60 nautical miles
-	    double distNautMiles = 60 * angle2;
-	    
-	    double distMeters = distNautMiles * 1852;
-	    return distMeters;
-	}
-	
+
+		return haversine(x1, y1, Math.cos(x1), x2, y2, Math.cos(x2));
+	}
+
 	static double greatCircle( Coordinate p1, Coordinate p2 ){
 		return greatCircle( p1.x, p1.y, p2.x, p2.y );
 	}
-	
+
+	/**
+	 * The great circle distance from p, in degrees, to a point in radians whose cosine of x has already been taken.
+	 */
+	static double greatCircle(Coordinate p, double x2, double y2, double cosX2) {
+		double x1 = Math.toRadians(p.x);
+		return haversine(x1, Math.toRadians(p.y), Math.cos(x1), x2, y2, cosX2);
+	}
+
+	/**
+	 * The haversine formula, on coordinates already in radians. The cosines of x1 and x2 are passed in, so that
+	 * callers measuring many distances to or along the same points only compute each of them once.
+	 *
+	 * Note that the formula is applied with x in the place of the latitude, which is how greatCircle has always
+	 * measured distances; the cosines are of x, not of the latitude.
+	 *
+	 * The operations are done in the same order as greatCircle has always done them, so that distances come out
+	 * the same to the last bit; callers compare them against thresholds and truncate times computed from them.
+	 */
+	static double haversine(double x1, double y1, double cosX1, double x2, double y2, double cosX2) {
+		double sinX = Math.sin((x2 - x1) / 2);
+		double sinY = Math.sin((y2 - y1) / 2);
+		double a = sinX * sinX + cosX1 * cosX2 * (sinY * sinY);
+
+		// great circle distance in radians
+		double angle = 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+
+		// each degree on a great circle of Earth is 60 nautical miles
+		return Math.toDegrees(angle) * 60 * 1852;
+	}
+
+	/**
+	 * A lower bound on the distance haversine measures from the point (x, y) to any point in the box, all in radians,
+	 * for best-first searches of spatial indices. It is scaled down slightly so that rounding can never make it
+	 * exceed the distance to a point on the edge of the box.
+	 */
+	static double lowerBoundDistance(double x, double y, double cosX,
+			double minX, double minY, double maxX, double maxY) {
+		double farX = Math.max(Math.abs(x - minX), Math.abs(x - maxX));
+		double farY = Math.max(Math.abs(y - minY), Math.abs(y - maxY));
+
+		// the half-angle sines below only grow with the differences up to pi
+		if (farX > Math.PI || farY > Math.PI)
+			return 0;
+
+		double nearX = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+		double nearY = y < minY ? minY - y : y > maxY ? y - maxY : 0;
+
+		// the smallest value of cosX * cos(x2) for x2 in the box. cos only turns at multiples of pi.
+		double cosMin = Math.min(cosX * Math.cos(minX), cosX * Math.cos(maxX));
+		if (minX <= 0 && maxX >= 0)
+			cosMin = Math.min(cosMin, cosX);
+		if ((minX <= Math.PI && maxX >= Math.PI) || (minX <= -Math.PI && maxX >= -Math.PI))
+			cosMin = Math.min(cosMin, -cosX);
+
+		double sinX = Math.sin(nearX / 2);
+		// a negative product makes the y term smallest where y is furthest away
+		double sinY = Math.sin((cosMin >= 0 ? nearY : farY) / 2);
+		double a = Math.max(0, sinX * sinX + cosMin * sinY * sinY);
+
+		return 2 * Math.asin(Math.min(1, Math.sqrt(a))) * METERS_PER_RADIAN * (1 - 1e-9);
+	}
+
+	/**
+	 * An equirectangular approximation of greatCircle, on coordinates already in radians, which needs a single
+	 * cosine rather than the several trigonometric functions of the haversine formula. For points within
+	 * FAST_DISTANCE_MAX_DELTA of each other it is never shorter than greatCircle, and no more than
+	 * FAST_DISTANCE_ERROR longer.
+	 */
+	static double fastDistance(double x1, double y1, double x2, double y2) {
+		double dx = x2 - x1;
+		double dy = (y2 - y1) * Math.cos((x1 + x2) / 2);
+		return Math.sqrt(dx * dx + dy * dy) * METERS_PER_RADIAN;
+	}
+
+	/**
+	 * Can the points (in radians) be ruled out as further apart than limit meters, using only fastDistance? If this
+	 * returns false, the points may or may not be within limit of each other, and greatCircle is needed to tell.
+	 * It never returns true for points that greatCircle puts within limit of each other.
+	 */
+	static boolean fastFurtherThan(double x1, double y1, double x2, double y2, double limit) {
+		if (Math.abs(x2 - x1) > FAST_DISTANCE_MAX_DELTA || Math.abs(y2 - y1) > FAST_DISTANCE_MAX_DELTA)
+			return false;
+
+		return fastDistance(x1, y1, x2, y2) > limit * (1 + FAST_DISTANCE_ERROR);
+	}
+
+	/**
+	 * The length of each segment of a line, given as arrays of x and y in degrees. Each vertex is converted to
+	 * radians, and its cosine taken, once rather than once for each segment it belongs to.
+	 *
+	 * @param out receives the length of the segment from vertex i to vertex i + 1 at position i.
+	 */
+	static void segmentLengths(double[] xs, double[] ys, int n, double[] out) {
+		if (n == 0)
+			return;
+
+		double x1 = Math.toRadians(xs[0]);
+		double y1 = Math.toRadians(ys[0]);
+		double cosX1 = Math.cos(x1);
+
+		for (int i = 1; i < n; i++) {
+			double x2 = Math.toRadians(xs[i]);
+			double y2 = Math.toRadians(ys[i]);
+			double cosX2 = Math.cos(x2);
+
+			out[i - 1] = haversine(x1, y1, cosX1, x2, y2, cosX2);
+
+			x1 = x2;
+			y1 = y2;
+			cosX1 = cosX2;
+		}
+	}
+
+	/**
+	 * The distance from one point to each of several others, all in degrees.
+	 * @param out receives the distance to point i at position i.
+	 */
+	static void distances(double x, double y, double[] xs, double[] ys, int n, double[] out) {
+		double x1 = Math.toRadians(x);
+		double y1 = Math.toRadians(y);
+		double cosX1 = Math.cos(x1);
+
+		for (int i = 0; i < n; i++) {
+			double x2 = Math.toRadians(xs[i]);
+			out[i] = haversine(x1, y1, cosX1, x2, Math.toRadians(ys[i]), Math.cos(x2));
+		}
+	}
+
+	/**
+	 * The length of each segment of a line.
+	 * @return an array with the length of the segment from vertex i to vertex i + 1 at position i.
+	 */
+	static double[] segmentLengths(Coordinate[] coords) {
+		int n = coords.length;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = coords[i].x;
+			ys[i] = coords[i].y;
+		}
+
+		double[] ret = new double[Math.max(n - 1, 0)];
+		segmentLengths(xs, ys, n, ret);
+		return ret;
+	}
+
+	/**
+	 * The distance along a line to each of its vertices.
+	 * @return an array with the distance along the line to vertex i at position i, starting with 0.
+	 */
+	static double[] cumulativeLengths(Coordinate[] coords) {
+		double[] lengths = segmentLengths(coords);
+
+		double[] ret = new double[coords.length];
+		for (int i = 1; i < coords.length; i++) {
+			ret[i] = ret[i - 1] + lengths[i - 1];
+		}
+		return ret;
+	}
+
 	static Coordinate interpolate(Coordinate p1, Coordinate p2,
 			double index) {
-		
+
 		double x = (p2.x-p1.x)*index + p1.x;
 		double y = (p2.y-p1.y)*index + p1.y;
-		
+
 		return new Coordinate(x,y);
 	}
-	
+
 	/**
 	 * The maximum number of degrees that is needed to represent the given threshold (in meters) at the given latitude.
 	 */
@@ -0,0 +1,679 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * Writes the GTFS entities geom2gtfs generates, without going through the reflective entity serialization of
+ * GtfsWriter. Each table has a fixed set of columns, and rows are formatted straight into a character buffer, so
+ * writing a stop time allocates nothing.
+ *
+ * As with GtfsWriter, an output name ending in .zip is written as a zip file, and any other name as a directory of
+ * tables. Tables are only made for entities that are written, and entities can be written in any order and in
+ * several batches, so a queue can be flushed once per route.
+ *
+ * For a zip file, each table is first written to a temporary file next to the output. On close the tables are
+ * cut into blocks which are deflated on several threads, each block primed with the end of the block before it
+ * so compression is nearly as good as deflating the whole table at once, and the compressed blocks are written
+ * out in order as a single zip entry per table. Zip64 records are written where sizes or offsets need them.
+ */
+public class GtfsFeedWriter implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** the size of the blocks tables are deflated in */
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	/** the deflate window; each block is primed with this much of the data before it */
+	private static final int DICTIONARY_SIZE = 1 << 15;
+
+	/**
+	 * Entries at least this large get zip64 sizes. This is a little under the 32 bit limit, so that the sizes
+	 * can be reserved before compressing, in case deflating makes a table slightly larger.
+	 */
+	private static final long ZIP64_ENTRY_SIZE = 0xF0000000L;
+
+	private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+
+	private final File output;
+	private final boolean zip;
+	/** where tables are written: the output directory, or a temporary directory for a zip file */
+	private final File tableDir;
+
+	/** tables in the order they were first written to */
+	private final List<Table> tables = new ArrayList<Table>();
+
+	private Table agencies;
+	private Table routes;
+	private Table trips;
+	private Table stops;
+	private Table stopTimes;
+	private Table frequencies;
+	private Table calendars;
+
+	public GtfsFeedWriter(File output) throws IOException {
+		this.output = output;
+		this.zip = output.getName().endsWith(".zip");
+
+		if (zip) {
+			File parent = output.getAbsoluteFile().getParentFile();
+			tableDir = Files.createTempDirectory(parent.toPath(), "." + output.getName()).toFile();
+		} else {
+			if (!output.isDirectory() && !output.mkdirs())
+				throw new IOException("could not create output directory " + output);
+			tableDir = output;
+		}
+	}
+
+	public void writeAgency(Agency agency) throws IOException {
+		if (agencies == null)
+			agencies = open("agency.txt",
+					"agency_id,agency_name,agency_url,agency_timezone,agency_lang,agency_phone");
+
+		agencies.field(agency.getId()).field(agency.getName()).field(agency.getUrl())
+				.field(agency.getTimezone()).field(agency.getLang()).field(agency.getPhone()).endRow();
+	}
+
+	public void writeRoute(Route route) throws IOException {
+		if (routes == null)
+			routes = open("routes.txt", "route_id,agency_id,route_short_name,route_long_name,route_type");
+
+		routes.field(id(route.getId())).field(route.getAgency() != null ? route.getAgency().getId() : null)
+				.field(route.getShortName()).field(route.getLongName()).field(route.getType()).endRow();
+	}
+
+	public void writeTrip(Trip trip) throws IOException {
+		if (trips == null)
+			trips = open("trips.txt", "route_id,service_id,trip_id,direction_id");
+
+		trips.field(id(trip.getRoute().getId())).field(id(trip.getServiceId())).field(id(trip.getId()))
+				.field(trip.getDirectionId()).endRow();
+	}
+
+	/** Write a stop, with every stops.txt column that GtfsReader reads, so that reused stops are carried through */
+	public void writeStop(Stop stop) throws IOException {
+		if (stops == null)
+			stops = open("stops.txt", "stop_id,stop_code,stop_name,stop_desc,stop_lat,stop_lon,zone_id,stop_url,"
+					+ "location_type,parent_station,wheelchair_boarding,direction,stop_timezone,vehicle_type,"
+					+ "platform_code");
+
+		stops.field(id(stop.getId())).field(stop.getCode()).field(stop.getName()).field(stop.getDesc())
+				.field(stop.getLat()).field(stop.getLon()).field(stop.getZoneId()).field(stop.getUrl())
+				.field(stop.getLocationType()).field(stop.getParentStation()).field(stop.getWheelchairBoarding())
+				.field(stop.getDirection()).field(stop.getTimezone());
+		if (stop.getVehicleType() != GtfsStopLoader.UNSET_VEHICLE_TYPE) {
+			stops.field(stop.getVehicleType());
+		} else {
+			stops.field((String) null);
+		}
+		stops.field(stop.getPlatformCode()).endRow();
+	}
+
+	/** Write a stop time; times are in seconds since midnight */
+	public void writeStopTime(Trip trip, Stop stop, int stopSequence, int arrivalTime, int departureTime)
+			throws IOException {
+		if (stopTimes == null)
+			stopTimes = open("stop_times.txt", "trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+
+		stopTimes.field(id(trip.getId())).time(arrivalTime).time(departureTime).field(id(stop.getId()))
+				.field(stopSequence).endRow();
+	}
+
+	public void writeFrequency(Frequency frequency) throws IOException {
+		if (frequencies == null)
+			frequencies = open("frequencies.txt", "trip_id,start_time,end_time,headway_secs,exact_times");
+
+		frequencies.field(id(frequency.getTrip().getId())).time(frequency.getStartTime())
+				.time(frequency.getEndTime()).field(frequency.getHeadwaySecs()).field(frequency.getExactTimes())
+				.endRow();
+	}
+
+	public void writeCalendar(ServiceCalendar calendar) throws IOException {
+		if (calendars == null)
+			calendars = open("calendar.txt", "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,"
+					+ "start_date,end_date");
+
+		calendars.field(id(calendar.getServiceId())).field(calendar.getMonday()).field(calendar.getTuesday())
+				.field(calendar.getWednesday()).field(calendar.getThursday()).field(calendar.getFriday())
+				.field(calendar.getSaturday()).field(calendar.getSunday())
+				.field(calendar.getStartDate().getAsString()).field(calendar.getEndDate().getAsString()).endRow();
+	}
+
+	/**
+	 * Finish the tables, and for a zip file, compress them into it and remove the temporary files. If writing the
+	 * zip file fails, it is removed as well.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Table table : tables) {
+			table.close();
+		}
+
+		if (!zip)
+			return;
+
+		boolean written = false;
+		try {
+			writeZip();
+			written = true;
+		} finally {
+			// a partly written zip file is no use to anyone
+			if (!written)
+				output.delete();
+
+			for (Table table : tables) {
+				table.file.delete();
+			}
+			tableDir.delete();
+		}
+	}
+
+	/**
+	 * Throw away everything written, after a failure. For a zip file the temporary tables are removed and the
+	 * output is not written; for a directory, the tables written so far are left as they are.
+	 */
+	public void abort() {
+		for (Table table : tables) {
+			try {
+				table.out.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}
+
+		if (!zip)
+			return;
+
+		for (Table table : tables) {
+			table.file.delete();
+		}
+		tableDir.delete();
+	}
+
+	/** Start a table. Package private so that a table with no rows can be written when checking the writer. */
+	Table open(String name, String header) throws IOException {
+		Table table = new Table(name, new File(tableDir, name));
+		table.writeHeader(header);
+		tables.add(table);
+		return table;
+	}
+
+	/** GTFS ids are written without their agency, as GtfsWriter writes them */
+	private static String id(AgencyAndId id) {
+		return id != null ? id.getId() : null;
+	}
+
+	/** A table being written, formatting rows into a character buffer */
+	static class Table {
+		final String name;
+		final File file;
+		final CRC32 crc = new CRC32();
+		final Writer out;
+
+		private char[] buf = new char[BUFFER_SIZE];
+		private int len = 0;
+		private boolean firstField = true;
+
+		Table(String name, File file) throws IOException {
+			this.name = name;
+			this.file = file;
+			this.out = new OutputStreamWriter(new CheckedOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), crc), StandardCharsets.UTF_8);
+		}
+
+		void writeHeader(String header) throws IOException {
+			ensure(header.length() + 1);
+			header.getChars(0, header.length(), buf, len);
+			len += header.length();
+			buf[len++] = '\n';
+		}
+
+		/** Write a field, quoted if it needs to be; null is written as an empty field */
+		Table field(String value) throws IOException {
+			separate();
+			if (value == null)
+				return this;
+
+			int n = value.length();
+			boolean quote = false;
+			for (int i = 0; i < n; i++) {
+				char c = value.charAt(i);
+				if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+					quote = true;
+					break;
+				}
+			}
+
+			if (!quote) {
+				ensure(n);
+				value.getChars(0, n, buf, len);
+				len += n;
+				return this;
+			}
+
+			ensure(n * 2 + 2);
+			buf[len++] = '"';
+			for (int i = 0; i < n; i++) {
+				char c = value.charAt(i);
+				if (c == '"')
+					buf[len++] = '"';
+				buf[len++] = c;
+			}
+			buf[len++] = '"';
+			return this;
+		}
+
+		Table field(int value) throws IOException {
+			separate();
+			ensure(11);
+			appendInt(value, 1);
+			return this;
+		}
+
+		Table field(double value) throws IOException {
+			String str = Double.toString(value);
+			// avoid scientific notation for coordinates near zero
+			if (str.indexOf('E') >= 0)
+				str = BigDecimal.valueOf(value).toPlainString();
+			return field(str);
+		}
+
+		/** Write a time of day in seconds as HH:MM:SS, with hours past 24 for service after midnight */
+		Table time(int seconds) throws IOException {
+			separate();
+			ensure(16);
+			appendInt(seconds / 3600, 2);
+			buf[len++] = ':';
+			appendInt(seconds / 60 % 60, 2);
+			buf[len++] = ':';
+			appendInt(seconds % 60, 2);
+			return this;
+		}
+
+		void endRow() throws IOException {
+			ensure(1);
+			buf[len++] = '\n';
+			firstField = true;
+		}
+
+		void close() throws IOException {
+			out.write(buf, 0, len);
+			len = 0;
+			out.close();
+		}
+
+		private void separate() throws IOException {
+			if (firstField) {
+				firstField = false;
+				return;
+			}
+			ensure(1);
+			buf[len++] = ',';
+		}
+
+		/** Append an int, zero padded to at least the given number of digits */
+		private void appendInt(int value, int digits) {
+			long v = value;
+			if (v < 0) {
+				buf[len++] = '-';
+				v = -v;
+			}
+
+			int n = 1;
+			for (long p = 10; p <= v; p *= 10) {
+				n++;
+			}
+			n = Math.max(n, digits);
+
+			for (int i = len + n - 1; i >= len; i--) {
+				buf[i] = (char) ('0' + v % 10);
+				v /= 10;
+			}
+			len += n;
+		}
+
+		/** Make room for n more characters, writing out the buffer if need be */
+		private void ensure(int n) throws IOException {
+			if (len + n <= buf.length)
+				return;
+
+			out.write(buf, 0, len);
+			len = 0;
+			if (n > buf.length)
+				buf = new char[n];
+		}
+	}
+
+	/** A table's entry in the zip file, as needed for the central directory */
+	private static class Entry {
+		byte[] name;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+		/** whether the local header has zip64 sizes */
+		boolean zip64Sizes;
+	}
+
+	/**
+	 * Deflate the tables on several threads and write them to the zip file. A few blocks per thread are compressed
+	 * ahead of the one being written, so memory use is bounded by the number of threads, not the size of the feed.
+	 */
+	private void writeZip() throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int maxPending = threads * 2;
+
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			int dosTime = dosTime(System.currentTimeMillis());
+			List<Entry> entries = new ArrayList<Entry>();
+
+			// all the blocks of all the tables, in the order they are written
+			final List<RandomAccessFile> inputs = new ArrayList<RandomAccessFile>();
+			Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			try {
+				List<Callable<byte[]>> blocks = new ArrayList<Callable<byte[]>>();
+				List<Integer> blockTable = new ArrayList<Integer>();
+				for (int t = 0; t < tables.size(); t++) {
+					final RandomAccessFile in = new RandomAccessFile(tables.get(t).file, "r");
+					inputs.add(in);
+
+					final long size = in.length();
+					for (long start = 0; start == 0 || start < size; start += BLOCK_SIZE) {
+						final long blockStart = start;
+						blocks.add(new Callable<byte[]>() {
+							@Override
+							public byte[] call() throws IOException {
+								return deflateBlock(in.getChannel(), blockStart, size);
+							}
+						});
+						blockTable.add(t);
+					}
+				}
+
+				int next = 0;
+				int current = -1;
+				Entry entry = null;
+				for (int b = 0; b < blocks.size(); b++) {
+					while (next < blocks.size() && pending.size() < maxPending) {
+						pending.add(executor.submit(blocks.get(next++)));
+					}
+
+					int t = blockTable.get(b);
+					if (t != current) {
+						if (entry != null)
+							finishEntry(channel, entry);
+
+						current = t;
+						Table table = tables.get(t);
+						entry = new Entry();
+						entry.name = table.name.getBytes(StandardCharsets.UTF_8);
+						entry.crc = table.crc.getValue();
+						entry.size = table.file.length();
+						entry.zip64Sizes = entry.size >= ZIP64_ENTRY_SIZE;
+						entry.offset = channel.position();
+						writeFully(channel, localHeader(entry, dosTime));
+						entries.add(entry);
+					}
+
+					byte[] compressed = get(pending.poll());
+					writeFully(channel, ByteBuffer.wrap(compressed));
+					entry.compressedSize += compressed.length;
+				}
+				if (entry != null)
+					finishEntry(channel, entry);
+			} finally {
+				for (Future<byte[]> future : pending) {
+					future.cancel(true);
+				}
+				executor.shutdownNow();
+				for (RandomAccessFile in : inputs) {
+					in.close();
+				}
+			}
+
+			writeCentralDirectory(channel, entries, dosTime);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deflate the block of a table starting at start. Every block but the last is ended with a sync flush rather
+	 * than a final block, so that the blocks of a table can simply be concatenated into a single deflate stream.
+	 */
+	private static byte[] deflateBlock(FileChannel in, long start, long size) throws IOException {
+		int dictionary = (int) Math.min(start, DICTIONARY_SIZE);
+		int length = (int) Math.min(BLOCK_SIZE, size - start);
+		boolean last = start + length >= size;
+
+		ByteBuffer data = ByteBuffer.allocate(dictionary + length);
+		long position = start - dictionary;
+		while (data.hasRemaining()) {
+			int n = in.read(data, position + data.position());
+			if (n < 0)
+				throw new IOException("table file ended early");
+		}
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			if (dictionary > 0)
+				deflater.setDictionary(data.array(), 0, dictionary);
+			deflater.setInput(data.array(), dictionary, length);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+			byte[] buf = new byte[BUFFER_SIZE];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buf);
+					out.write(buf, 0, n);
+				}
+			} else {
+				// a sync flush that fills the buffer may have more to write
+				int n;
+				do {
+					n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					out.write(buf, 0, n);
+				} while (n == buf.length);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] get(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Fill in the compressed size of an entry, which isn't known until all its blocks are written */
+	private static void finishEntry(FileChannel channel, Entry entry) throws IOException {
+		if (!entry.zip64Sizes && entry.compressedSize >= ZIP32_LIMIT)
+			throw new IOException(new String(entry.name, StandardCharsets.UTF_8) + " compressed larger than expected");
+
+		ByteBuffer size = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		long position;
+		if (entry.zip64Sizes) {
+			// in the zip64 extra field, after its id, length and the uncompressed size
+			size.putLong(entry.compressedSize);
+			position = entry.offset + 30 + entry.name.length + 4 + 8;
+		} else {
+			size.putInt((int) entry.compressedSize);
+			position = entry.offset + 18;
+		}
+		size.flip();
+		while (size.hasRemaining()) {
+			channel.write(size, position + size.position());
+		}
+	}
+
+	private static ByteBuffer localHeader(Entry entry, int dosTime) {
+		ByteBuffer buf = ByteBuffer.allocate(30 + entry.name.length + (entry.zip64Sizes ? 20 : 0))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(0x04034b50);
+		buf.putShort((short) (entry.zip64Sizes ? 45 : 20)); // version needed to extract
+		buf.putShort((short) 0); // flags
+		buf.putShort((short) Deflater.DEFLATED);
+		buf.putInt(dosTime);
+		buf.putInt((int) entry.crc);
+		if (entry.zip64Sizes) {
+			buf.putInt((int) ZIP32_LIMIT);
+			buf.putInt((int) ZIP32_LIMIT);
+		} else {
+			buf.putInt(0); // compressed size, filled in by finishEntry
+			buf.putInt((int) entry.size);
+		}
+		buf.putShort((short) entry.name.length);
+		buf.putShort((short) (entry.zip64Sizes ? 20 : 0));
+		buf.put(entry.name);
+		if (entry.zip64Sizes) {
+			buf.putShort((short) 0x0001);
+			buf.putShort((short) 16);
+			buf.putLong(entry.size);
+			buf.putLong(0); // compressed size, filled in by finishEntry
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static void writeCentralDirectory(FileChannel channel, List<Entry> entries, int dosTime)
+			throws IOException {
+		long start = channel.position();
+		boolean zip64 = entries.size() >= 0xFFFF;
+
+		for (Entry entry : entries) {
+			boolean bigSize = entry.size >= ZIP32_LIMIT || entry.compressedSize >= ZIP32_LIMIT;
+			boolean bigOffset = entry.offset >= ZIP32_LIMIT;
+			int extra = (bigSize ? 16 : 0) + (bigOffset ? 8 : 0);
+			boolean entryZip64 = extra > 0 || entry.zip64Sizes;
+			zip64 |= extra > 0;
+
+			ByteBuffer buf = ByteBuffer.allocate(46 + entry.name.length + (extra > 0 ? 4 + extra : 0))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(0x02014b50);
+			buf.putShort((short) (entryZip64 ? 45 : 20)); // version made by
+			buf.putShort((short) (entryZip64 ? 45 : 20)); // version needed to extract
+			buf.putShort((short) 0); // flags
+			buf.putShort((short) Deflater.DEFLATED);
+			buf.putInt(dosTime);
+			buf.putInt((int) entry.crc);
+			buf.putInt((int) (bigSize ? ZIP32_LIMIT : entry.compressedSize));
+			buf.putInt((int) (bigSize ? ZIP32_LIMIT : entry.size));
+			buf.putShort((short) entry.name.length);
+			buf.putShort((short) (extra > 0 ? 4 + extra : 0));
+			buf.putShort((short) 0); // comment length
+			buf.putShort((short) 0); // disk number
+			buf.putShort((short) 0); // internal attributes
+			buf.putInt(0); // external attributes
+			buf.putInt((int) (bigOffset ? ZIP32_LIMIT : entry.offset));
+			buf.put(entry.name);
+			if (extra > 0) {
+				buf.putShort((short) 0x0001);
+				buf.putShort((short) extra);
+				if (bigSize) {
+					buf.putLong(entry.size);
+					buf.putLong(entry.compressedSize);
+				}
+				if (bigOffset)
+					buf.putLong(entry.offset);
+			}
+			buf.flip();
+			writeFully(channel, buf);
+		}
+
+		long end = channel.position();
+		long size = end - start;
+		zip64 |= start >= ZIP32_LIMIT || size >= ZIP32_LIMIT;
+
+		ByteBuffer buf = ByteBuffer.allocate(56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+		if (zip64) {
+			// zip64 end of central directory record, then its locator
+			buf.putInt(0x06064b50);
+			buf.putLong(44);
+			buf.putShort((short) 45);
+			buf.putShort((short) 45);
+			buf.putInt(0);
+			buf.putInt(0);
+			buf.putLong(entries.size());
+			buf.putLong(entries.size());
+			buf.putLong(size);
+			buf.putLong(start);
+
+			buf.putInt(0x07064b50);
+			buf.putInt(0);
+			buf.putLong(end);
+			buf.putInt(1);
+		}
+
+		buf.putInt(0x06054b50);
+		buf.putShort((short) 0);
+		buf.putShort((short) 0);
+		buf.putShort((short) Math.min(entries.size(), 0xFFFF));
+		buf.putShort((short) Math.min(entries.size(), 0xFFFF));
+		buf.putInt((int) Math.min(size, ZIP32_LIMIT));
+		buf.putInt((int) Math.min(start, ZIP32_LIMIT));
+		buf.putShort((short) 0); // comment length
+		buf.flip();
+		writeFully(channel, buf);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/** a time in the MS-DOS format of zip headers: the time in the low 16 bits, and the date in the high 16 */
+	private static int dosTime(long millis) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(millis);
+		int year = Math.max(cal.get(Calendar.YEAR), 1980);
+		return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16
+				| cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+	}
+}
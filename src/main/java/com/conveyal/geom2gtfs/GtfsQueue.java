@@ -1,48 +1,118 @@
 package com.conveyal.geom2gtfs;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Frequency;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.ServiceCalendar;
 import org.onebusaway.gtfs.model.Stop;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.serialization.GtfsWriter;
 
 public class GtfsQueue {
 	public List<Agency> agencies = new ArrayList<Agency>();
 	public List<Route> routes = new ArrayList<Route>();
-	public List<Stop> stops = new ArrayList<Stop>();
+	public StopRegistry stops = new StopRegistry();
 	public List<Trip> trips = new ArrayList<Trip>();
 	public List<Frequency> frequencies = new ArrayList<Frequency>();
-	public List<StopTime> stoptimes = new ArrayList<StopTime>();
+	public StopTimeStore stoptimes = new StopTimeStore();
 	public List<ServiceCalendar> calendars = new ArrayList<ServiceCalendar>();
-	
-	public void dumpToWriter(GtfsWriter gtfsWriter) {
+
+	/** number of trips created so far, including those that have already been flushed */
+	private int tripCount = 0;
+
+	/** number of stops created so far, including those that have already been flushed */
+	private int createdStopCount = 0;
+
+	/**
+	 * Get an id for a new trip. This does not depend on the contents of the queue, so ids stay unique
+	 * when the queue is flushed part way through.
+	 */
+	private String nextTripId() {
+		return String.valueOf(tripCount++);
+	}
+
+	/**
+	 * Give a created stop its final id and name. Stop generators that place all their stops before any route is
+	 * generated use this to number them as append would.
+	 */
+	public static void nameCreatedStop(Stop stop, int stopNumber) {
+		stop.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, "created_stop_" + stopNumber));
+		stop.setName("Stop " + stopNumber);
+	}
+
+	/**
+	 * Add the entities generated for a single route. Trips and newly created stops are numbered here rather
+	 * than when they are generated, so ids depend only on the order in which routes are appended and not on
+	 * the order (or the thread) in which they were generated.
+	 * @return the number of stops that were not already in this queue.
+	 */
+	public int append(GtfsQueue route) {
+		agencies.addAll(route.agencies);
+		routes.addAll(route.routes);
+
+		int newStops = 0;
+		for(Stop stop : route.stops){
+			if (ProtoRouteStop.isProvisional(stop)) {
+				nameCreatedStop(stop, ++createdStopCount);
+			}
+
+			if (stops.add(stop)) {
+				newStops++;
+			}
+		}
+
+		for(Trip trip : route.trips){
+			trip.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, nextTripId()));
+			trips.add(trip);
+		}
+
+		stoptimes.addAll(route.stoptimes);
+		frequencies.addAll(route.frequencies);
+		calendars.addAll(route.calendars);
+
+		return newStops;
+	}
+
+	public void dumpToWriter(GtfsFeedWriter gtfsWriter) throws IOException {
 	    for(Agency agency : agencies){
-	    	gtfsWriter.handleEntity( agency );
+	    	gtfsWriter.writeAgency( agency );
 	    }
 	    for(Route route : routes){
-	    	gtfsWriter.handleEntity(route);
+	    	gtfsWriter.writeRoute(route);
 	    }
 	    for(Trip trip : trips){
-	    	gtfsWriter.handleEntity(trip);
+	    	gtfsWriter.writeTrip(trip);
 	    }
 	    for(Stop stop : stops){
-	    	gtfsWriter.handleEntity(stop);
-	    }
-	    for(StopTime stoptime : stoptimes){
-	    	gtfsWriter.handleEntity(stoptime);
+	    	gtfsWriter.writeStop(stop);
 	    }
+	    stoptimes.writeTo(gtfsWriter);
 	    for(Frequency fr : frequencies){
-	    	gtfsWriter.handleEntity(fr);
+	    	gtfsWriter.writeFrequency(fr);
 	    }
 	    for(ServiceCalendar sc : calendars){
-	    	gtfsWriter.handleEntity(sc);
+	    	gtfsWriter.writeCalendar(sc);
 	    }
 	}
 
+	/**
+	 * Write everything queued so far to the writer and empty the queue. The writer keeps one file open per
+	 * table, so this can be called once per route to keep memory use bounded by the largest route.
+	 */
+	public void flush(GtfsFeedWriter gtfsWriter) throws IOException {
+		dumpToWriter(gtfsWriter);
+
+		agencies.clear();
+		routes.clear();
+		stops.markWritten();
+		trips.clear();
+		frequencies.clear();
+		stoptimes.clear();
+		calendars.clear();
+	}
+
 }
@@ -0,0 +1,238 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+/**
+ * Loads the stops from GTFS feeds to snap to. Only stops.txt is read from each feed, and the feeds are read in
+ * parallel; the stops are returned in the order of the feeds, and within each feed in the order of the file, so
+ * the result doesn't depend on which feed finishes first.
+ *
+ * Every stops.txt column that GtfsReader reads is kept, except parent_station, since stations aren't loaded. These
+ * are the fields that SnappingIndexCache keeps, so a run against a cached index comes out the same as one against
+ * freshly loaded stops.
+ *
+ * As with GtfsReader, a feed that can't be read is skipped, but a feed that can be read and is malformed stops the
+ * run, rather than quietly leaving its stops out.
+ */
+public class GtfsStopLoader {
+    private static final String STOPS_FILE = "stops.txt";
+
+    /** GTFS location_type of stations, which aren't snapped to */
+    private static final int STATION = 1;
+
+    /** the vehicle type of a stop that doesn't give one */
+    static final int UNSET_VEHICLE_TYPE = new Stop().getVehicleType();
+
+    /** A feed that could be read, but whose stops.txt is not valid */
+    public static class MalformedFeedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedFeedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Load the stops from each of the feeds. A feed may be a zip file or a directory. Stop IDs are prefixed with
+     * the index of their feed in the list to avoid collisions between feeds. Feeds that can't be read are
+     * reported and skipped.
+     * @throws MalformedFeedException if a feed's stops.txt can be read but isn't valid
+     */
+    public static List<Stop> load(List<String> fileNames) {
+        List<Stop> stops = new ArrayList<Stop>();
+        if (fileNames.isEmpty())
+            return stops;
+
+        int threads = Math.min(fileNames.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Stop>>> feeds = new ArrayList<Future<List<Stop>>>();
+            for (int i = 0; i < fileNames.size(); i++) {
+                final int feedIdx = i;
+                final String fileName = fileNames.get(i);
+                feeds.add(executor.submit(new Callable<List<Stop>>() {
+                    @Override
+                    public List<Stop> call() throws IOException {
+                        return loadFeed(new File(fileName), feedIdx);
+                    }
+                }));
+            }
+
+            // merge in the order of the feeds, not the order in which they finished
+            for (int i = 0; i < feeds.size(); i++) {
+                String fileName = fileNames.get(i);
+                try {
+                    List<Stop> feedStops = feeds.get(i).get();
+                    System.err.println("Loaded " + feedStops.size() + " stops from GTFS file " + fileName);
+                    stops.addAll(feedStops);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof MalformedFeedException)
+                        throw (MalformedFeedException) cause;
+                    if (!(cause instanceof IOException))
+                        throw new RuntimeException("Unable to load GTFS file " + fileName, cause);
+
+                    System.err.println("Unable to load GTFS file " + fileName + ": " + cause);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return stops;
+    }
+
+    private static List<Stop> loadFeed(File file, int feedIdx) throws IOException {
+        if (file.isDirectory()) {
+            return readStops(new FileInputStream(new File(file, STOPS_FILE)), file, feedIdx);
+        }
+
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry entry = zip.getEntry(STOPS_FILE);
+            if (entry == null)
+                throw new IOException(file + " has no " + STOPS_FILE);
+
+            return readStops(zip.getInputStream(entry), file, feedIdx);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Read stops.txt, skipping stations. Empty fields are treated as missing, as they are by GtfsReader.
+     * @throws IOException if the file can't be read
+     * @throws MalformedFeedException if the file can be read, but isn't valid
+     */
+    private static List<Stop> readStops(InputStream in, File feed, int feedIdx) throws IOException {
+        CsvReader reader = new CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int record = 1;
+        try {
+            String[] header = reader.readRecord();
+            if (header == null)
+                throw malformed(feed, record, STOPS_FILE + " is empty", null);
+
+            Map<String, Integer> columns = new HashMap<String, Integer>();
+            for (int i = 0; i < header.length; i++) {
+                columns.put(header[i].trim(), i);
+            }
+
+            int id = requiredColumn(columns, "stop_id", feed);
+            int lat = requiredColumn(columns, "stop_lat", feed);
+            int lon = requiredColumn(columns, "stop_lon", feed);
+            int code = column(columns, "stop_code");
+            int name = column(columns, "stop_name");
+            int desc = column(columns, "stop_desc");
+            int zone = column(columns, "zone_id");
+            int url = column(columns, "stop_url");
+            int locationType = column(columns, "location_type");
+            int wheelchair = column(columns, "wheelchair_boarding");
+            int direction = column(columns, "direction");
+            int timezone = column(columns, "stop_timezone");
+            int vehicleType = column(columns, "vehicle_type");
+            int platformCode = column(columns, "platform_code");
+
+            List<Stop> stops = new ArrayList<Stop>();
+            String[] row;
+            while ((row = reader.readRecord()) != null) {
+                record++;
+                if (row.length == 1 && row[0].isEmpty())
+                    continue; // blank line
+
+                try {
+                    // don't snap to stations
+                    int type = getInt(row, locationType, 0);
+                    if (type == STATION)
+                        continue;
+
+                    String stopId = get(row, id);
+                    if (stopId == null)
+                        throw new IllegalArgumentException("stop has no stop_id");
+
+                    Stop stop = new Stop();
+                    stop.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, "" + feedIdx + "_" + stopId));
+                    stop.setCode(get(row, code));
+                    stop.setName(get(row, name));
+                    stop.setDesc(get(row, desc));
+                    stop.setLat(getDouble(row, lat, "stop_lat"));
+                    stop.setLon(getDouble(row, lon, "stop_lon"));
+                    stop.setZoneId(get(row, zone));
+                    stop.setUrl(get(row, url));
+                    stop.setLocationType(type);
+                    stop.setWheelchairBoarding(getInt(row, wheelchair, 0));
+                    stop.setDirection(get(row, direction));
+                    stop.setTimezone(get(row, timezone));
+                    stop.setVehicleType(getInt(row, vehicleType, UNSET_VEHICLE_TYPE));
+                    stop.setPlatformCode(get(row, platformCode));
+                    stops.add(stop);
+                } catch (IllegalArgumentException e) {
+                    // including NumberFormatException
+                    throw malformed(feed, record, e.getMessage(), e);
+                }
+            }
+
+            return stops;
+        } catch (CsvReader.MalformedCsvException e) {
+            throw malformed(feed, record, e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static MalformedFeedException malformed(File feed, int record, String message, Throwable cause) {
+        return new MalformedFeedException("GTFS file " + feed + ", " + STOPS_FILE + " record " + record + ": "
+                + message, cause);
+    }
+
+    private static int column(Map<String, Integer> columns, String name) {
+        Integer col = columns.get(name);
+        return col != null ? col : -1;
+    }
+
+    private static int requiredColumn(Map<String, Integer> columns, String name, File feed) {
+        int col = column(columns, name);
+        if (col < 0)
+            throw malformed(feed, 1, "no " + name + " column", null);
+        return col;
+    }
+
+    /** @return the value of a column, or null if the column is absent or the field is empty */
+    private static String get(String[] row, int col) {
+        if (col < 0 || col >= row.length || row[col].isEmpty())
+            return null;
+        return row[col];
+    }
+
+    private static int getInt(String[] row, int col, int defaultValue) {
+        String val = get(row, col);
+        return val != null ? Integer.parseInt(val.trim()) : defaultValue;
+    }
+
+    private static double getDouble(String[] row, int col, String name) {
+        String val = get(row, col);
+        if (val == null)
+            throw new IllegalArgumentException("stop has no " + name);
+        return Double.parseDouble(val.trim());
+    }
+}
@@ -0,0 +1,422 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.opengis.feature.Property;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * The routes generated by a run, kept in a file next to the output so that the next run can reuse the routes whose
+ * features have not changed rather than generating them again.
+ *
+ * Each route is stored as it was before it was appended to the main queue, with created stops and trips not yet
+ * numbered. Reused routes are appended in the same way as newly generated ones, so ids come out exactly as they
+ * would if every route had been generated.
+ *
+ * Each route is stored with a fingerprint of its features' geometries and attributes (including those joined
+ * from the CSV), and the whole file with a key made from the config. A route is only reused if its fingerprint
+ * matches, and nothing is reused if the config has changed.
+ *
+ * Neither the routes of the last run nor those of this one are held on the heap, so incremental runs keep the
+ * memory bound of streaming runs. The state of this run is written to its file as each route is appended, and
+ * the state file of the last run is mapped into memory and each route read from it only when it is reused.
+ */
+public class IncrementalState {
+	private static final int MAGIC = 0x67326773; // "g2gs"
+
+	/** bump this whenever a change to the code would change the routes generated from the same input */
+	private static final int VERSION = 4;
+
+	/** config properties that only affect how a run is carried out, not the feed it produces */
+	private static final String[] RUN_PROPERTIES = { "incremental", "streaming", "threads", "report",
+			"progress_interval" };
+
+	/** the fingerprint of each route stored by the last run, and where in the mapped file the route starts */
+	private Map<String, String> fingerprints = new HashMap<String, String>();
+	private Map<String, Integer> positions = new HashMap<String, Integer>();
+	private ByteBuffer stored;
+
+	/** the file this run's routes are written to as they are appended */
+	private File file;
+	private DataOutputStream out;
+
+	private IncrementalState() {
+	}
+
+	/**
+	 * Make a key describing everything in the config that affects the generated routes. The properties of the
+	 * config are sorted so that reordering them doesn't invalidate the state, and the size and modification time
+	 * of a stop shapefile stand in for its contents.
+	 */
+	public static String configKey(Config config) {
+		JSONObject data = new JSONObject(config.data.toString());
+		for (String prop : RUN_PROPERTIES) {
+			data.remove(prop);
+		}
+
+		StringBuilder key = new StringBuilder(canonicalJson(data));
+
+		JSONObject stops = data.optJSONObject("stops");
+		if (stops != null && stops.has("filename")) {
+			File file = new File(stops.getString("filename"));
+			key.append('\n').append(file.getAbsolutePath()).append('|')
+				.append(file.length()).append('|')
+				.append(file.lastModified());
+		}
+
+		return key.toString();
+	}
+
+	/** Write JSON with the keys of every object sorted, so that equivalent JSON is written the same way */
+	static String canonicalJson(Object value) {
+		StringBuilder sb = new StringBuilder();
+		appendCanonical(sb, value);
+		return sb.toString();
+	}
+
+	private static void appendCanonical(StringBuilder sb, Object value) {
+		if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject) value;
+			sb.append('{');
+			boolean first = true;
+			for (String key : new TreeSet<String>(obj.keySet())) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				sb.append(JSONObject.quote(key)).append(':');
+				appendCanonical(sb, obj.get(key));
+			}
+			sb.append('}');
+		} else if (value instanceof JSONArray) {
+			JSONArray arr = (JSONArray) value;
+			sb.append('[');
+			for (int i = 0; i < arr.length(); i++) {
+				if (i > 0)
+					sb.append(',');
+				appendCanonical(sb, arr.get(i));
+			}
+			sb.append(']');
+		} else if (value instanceof String) {
+			sb.append(JSONObject.quote((String) value));
+		} else {
+			sb.append(value);
+		}
+	}
+
+	/**
+	 * Fingerprint the features of a route: their geometries, their attributes and any attributes joined to them,
+	 * in the order they make up the route. Features have been cut down to the attributes the config reads, so a
+	 * change to an attribute nothing reads doesn't regenerate the route.
+	 */
+	public static String fingerprint(String routeId, List<ExtendedFeature> group) {
+		Hasher hasher = Hashing.sha1().newHasher();
+		putString(hasher, routeId);
+		hasher.putInt(group.size());
+
+		WKBWriter wkbWriter = new WKBWriter();
+		for (ExtendedFeature exft : group) {
+			for (Property prop : exft.feat.getProperties()) {
+				putString(hasher, prop.getName().toString());
+
+				Object value = prop.getValue();
+				if (value instanceof Geometry) {
+					byte[] wkb = wkbWriter.write((Geometry) value);
+					hasher.putInt(wkb.length);
+					hasher.putBytes(wkb);
+				} else {
+					putString(hasher, value != null ? value.toString() : null);
+				}
+			}
+
+			Map<String, String> extraFields = exft.getExtraFields();
+			if (extraFields == null) {
+				hasher.putInt(-1);
+			} else {
+				hasher.putInt(extraFields.size());
+				for (Map.Entry<String, String> field : new TreeMap<String, String>(extraFields).entrySet()) {
+					putString(hasher, field.getKey());
+					putString(hasher, field.getValue());
+				}
+			}
+		}
+
+		return hasher.hash().toString();
+	}
+
+	/** Strings are prefixed with their length so that adjacent strings can't run into each other */
+	private static void putString(Hasher hasher, String str) {
+		if (str == null) {
+			hasher.putInt(-1);
+			return;
+		}
+		hasher.putInt(str.length());
+		hasher.putString(str, StandardCharsets.UTF_8);
+	}
+
+	/** Was a route with this id and fingerprint stored? */
+	public boolean isUnchanged(String routeId, String fingerprint) {
+		return fingerprint.equals(fingerprints.get(routeId));
+	}
+
+	/**
+	 * Start a state file for this run. Routes are written to it by put(), and it is complete once close() has been
+	 * called.
+	 */
+	public static IncrementalState create(File file, String configKey) throws IOException {
+		IncrementalState ret = new IncrementalState();
+		ret.file = file;
+		ret.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+		boolean started = false;
+		try {
+			ret.out.writeInt(MAGIC);
+			ret.out.writeInt(VERSION);
+			SnappingIndexCache.writeString(ret.out, configKey);
+			started = true;
+		} finally {
+			if (!started) {
+				ret.abort();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Store a route that has just been generated or reused. This must be called before the route is appended to
+	 * the main queue, which gives its stops and trips their final ids, and by one thread at a time.
+	 */
+	public void put(String routeId, String fingerprint, GtfsQueue route) throws IOException {
+		byte[] fragment = serialize(route);
+
+		out.writeBoolean(true);
+		SnappingIndexCache.writeString(out, routeId);
+		SnappingIndexCache.writeString(out, fingerprint);
+		out.writeInt(fragment.length);
+		out.write(fragment);
+	}
+
+	/** Mark the end of the routes and close the file, or delete it if that fails */
+	public void close() throws IOException {
+		boolean closed = false;
+		try {
+			out.writeBoolean(false);
+			out.close();
+			closed = true;
+		} finally {
+			if (!closed) {
+				abort();
+			}
+		}
+	}
+
+	/** Give up on the state file, after a run that failed */
+	public void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// it is about to be deleted anyway
+		}
+		file.delete();
+	}
+
+	/**
+	 * Recreate a stored route, as it was before it was appended to the main queue. Routes can be loaded from
+	 * several threads at once.
+	 * @param agency the agency the route belongs to.
+	 */
+	public GtfsQueue load(String routeId, Agency agency) {
+		// each load reads through its own view of the file
+		ByteBuffer buf = stored.duplicate();
+		buf.position(positions.get(routeId));
+		return deserialize(buf, agency);
+	}
+
+	/**
+	 * Read the index of a state file, mapping the file so that routes can be read from it as they are reused.
+	 * @return the stored routes, or null if the file doesn't exist or was written with a different config.
+	 */
+	public static IncrementalState read(File file, String configKey) throws IOException {
+		if (!file.exists())
+			return null;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				System.err.println("State file " + file + " is too large to map, regenerating all routes");
+				return null;
+			}
+
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+					|| !configKey.equals(SnappingIndexCache.readString(buf))) {
+				System.out.println( "config has changed since " + file + " was written, regenerating all routes" );
+				return null;
+			}
+
+			IncrementalState ret = new IncrementalState();
+			while (buf.get() != 0) {
+				String routeId = SnappingIndexCache.readString(buf);
+				ret.fingerprints.put(routeId, SnappingIndexCache.readString(buf));
+
+				int length = buf.getInt();
+				if (length < 0 || length > buf.remaining())
+					throw new BufferUnderflowException();
+				ret.positions.put(routeId, buf.position());
+				buf.position(buf.position() + length);
+			}
+			ret.stored = buf;
+			return ret;
+		} catch (BufferUnderflowException e) {
+			System.err.println("State file " + file + " is truncated, regenerating all routes");
+			return null;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Serialize the routes, stops, trips, frequencies and stop times of a single route; that is all a route
+	 * generated by Main.featToGtfs contains. Entities refer to one another by their position in the route.
+	 */
+	static byte[] serialize(GtfsQueue route) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		Map<Route, Integer> routePositions = new IdentityHashMap<Route, Integer>();
+		out.writeInt(route.routes.size());
+		for (Route r : route.routes) {
+			routePositions.put(r, routePositions.size());
+			SnappingIndexCache.writeString(out, r.getId().getAgencyId());
+			SnappingIndexCache.writeString(out, r.getId().getId());
+			SnappingIndexCache.writeString(out, r.getShortName());
+			SnappingIndexCache.writeString(out, r.getLongName());
+			out.writeInt(r.getType());
+		}
+
+		// stops are equal if their ids are, so this also finds stops the registry dropped as duplicates
+		Map<Stop, Integer> stopPositions = new HashMap<Stop, Integer>();
+		out.writeInt(route.stops.size());
+		for (Stop stop : route.stops) {
+			stopPositions.put(stop, stopPositions.size());
+
+			// created stops are given new provisional ids when they are read back
+			boolean provisional = ProtoRouteStop.isProvisional(stop);
+			out.writeBoolean(provisional);
+			if (provisional) {
+				out.writeDouble(stop.getLat());
+				out.writeDouble(stop.getLon());
+			} else {
+				SnappingIndexCache.writeStop(out, stop);
+			}
+		}
+
+		Map<Trip, Integer> tripPositions = new IdentityHashMap<Trip, Integer>();
+		out.writeInt(route.trips.size());
+		for (Trip trip : route.trips) {
+			tripPositions.put(trip, tripPositions.size());
+			out.writeInt(routePositions.get(trip.getRoute()));
+			SnappingIndexCache.writeString(out, trip.getServiceId().getAgencyId());
+			SnappingIndexCache.writeString(out, trip.getServiceId().getId());
+			SnappingIndexCache.writeString(out, trip.getDirectionId());
+		}
+
+		out.writeInt(route.frequencies.size());
+		for (Frequency freq : route.frequencies) {
+			out.writeInt(tripPositions.get(freq.getTrip()));
+			out.writeInt(freq.getStartTime());
+			out.writeInt(freq.getEndTime());
+			out.writeInt(freq.getHeadwaySecs());
+			out.writeInt(freq.getExactTimes());
+		}
+
+		route.stoptimes.write(out, stopPositions, tripPositions);
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Read a route written by serialize, from the current position of buf */
+	static GtfsQueue deserialize(ByteBuffer buf, Agency agency) {
+		GtfsQueue ret = new GtfsQueue();
+
+		int routeCount = buf.getInt();
+		for (int i = 0; i < routeCount; i++) {
+			Route route = new Route();
+			route.setId(new AgencyAndId(SnappingIndexCache.readString(buf), SnappingIndexCache.readString(buf)));
+			route.setShortName(SnappingIndexCache.readString(buf));
+			route.setLongName(SnappingIndexCache.readString(buf));
+			route.setType(buf.getInt());
+			route.setAgency(agency);
+			ret.routes.add(route);
+		}
+
+		int stopCount = buf.getInt();
+		List<Stop> stops = new ArrayList<Stop>(stopCount);
+		for (int i = 0; i < stopCount; i++) {
+			Stop stop;
+			if (buf.get() != 0) {
+				double lat = buf.getDouble();
+				double lon = buf.getDouble();
+				stop = ProtoRouteStop.provisionalStop(lat, lon);
+			} else {
+				stop = SnappingIndexCache.readStop(buf);
+			}
+			stops.add(stop);
+			ret.stops.add(stop);
+		}
+
+		int tripCount = buf.getInt();
+		for (int i = 0; i < tripCount; i++) {
+			Trip trip = new Trip();
+			trip.setRoute(ret.routes.get(buf.getInt()));
+			trip.setServiceId(new AgencyAndId(SnappingIndexCache.readString(buf), SnappingIndexCache.readString(buf)));
+			trip.setDirectionId(SnappingIndexCache.readString(buf));
+			ret.trips.add(trip);
+		}
+
+		int freqCount = buf.getInt();
+		for (int i = 0; i < freqCount; i++) {
+			Frequency freq = new Frequency();
+			freq.setTrip(ret.trips.get(buf.getInt()));
+			freq.setStartTime(buf.getInt());
+			freq.setEndTime(buf.getInt());
+			freq.setHeadwaySecs(buf.getInt());
+			freq.setExactTimes(buf.getInt());
+			ret.frequencies.add(freq);
+		}
+
+		ret.stoptimes.read(buf, stops, ret.trips);
+
+		return ret;
+	}
+}
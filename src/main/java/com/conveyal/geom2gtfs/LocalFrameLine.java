@@ -0,0 +1,142 @@
+package com.conveyal.geom2gtfs;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A line in a local planar frame, in which x is scaled by the cosine of the latitude of the first vertex so that
+ * distances in x and y are comparable, for projecting points onto the line.
+ *
+ * Projection works directly on the coordinate arrays and writes its result into a Projection supplied by the
+ * caller, so a line can be projected onto any number of times without allocating. The results are those of
+ * projecting with a JTS LocationIndexedLine in the same frame: the nearest point on the first of the nearest
+ * segments, with the location normalized the way LinearLocation normalizes it.
+ *
+ * Lines are immutable once made, so they can be shared between threads.
+ */
+public final class LocalFrameLine {
+    /** the result of a projection; reused by the caller from one projection to the next */
+    public static final class Projection {
+        /**
+         * the segment the point projects onto. If the point projects onto the end of a segment, this is the
+         * segment after it, or if it is the last segment, the last vertex of the line.
+         */
+        public int segmentIndex;
+        /** how far along the segment the point projects, from 0 inclusive to 1 exclusive */
+        public double fraction;
+        /** the projected point, in the original coordinates */
+        public double x;
+        public double y;
+    }
+
+    private final double xScale;
+    /** the vertices, with x scaled into the local frame */
+    private final double[] xs;
+    private final double[] ys;
+
+    public LocalFrameLine(Coordinate[] coords) {
+        int n = coords.length;
+        xScale = Math.cos(Math.toRadians(coords[0].y));
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = coords[i].x * xScale;
+            ys[i] = coords[i].y;
+        }
+    }
+
+    /** the line along a way of a way index */
+    public LocalFrameLine(PackedWayIndex ways, int way) {
+        int n = ways.getVertexCount(way);
+        xScale = Math.cos(Math.toRadians(ways.getY(way, 0)));
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = ways.getX(way, i) * xScale;
+            ys[i] = ways.getY(way, i);
+        }
+    }
+
+    /** Project the point (x, y), in the original coordinates, onto the line. */
+    public void project(double x, double y, Projection out) {
+        double px = x * xScale;
+        double py = y;
+
+        double minDistance = Double.MAX_VALUE;
+        int minSegment = 0;
+        double minFraction = 0;
+
+        int last = xs.length - 1;
+        for (int i = 0; i < last; i++) {
+            double dist = segmentDistance(px, py, xs[i], ys[i], xs[i + 1], ys[i + 1]);
+            if (dist < minDistance) {
+                minDistance = dist;
+                minSegment = i;
+                minFraction = segmentFraction(px, py, xs[i], ys[i], xs[i + 1], ys[i + 1]);
+            }
+        }
+
+        // a point projecting onto the end of a segment is at the start of the next one
+        if (minFraction == 1.0) {
+            minFraction = 0.0;
+            minSegment++;
+        }
+
+        out.segmentIndex = minSegment;
+        out.fraction = minFraction;
+
+        double lx, ly;
+        if (minSegment >= last || minFraction <= 0.0) {
+            lx = xs[minSegment];
+            ly = ys[minSegment];
+        } else {
+            lx = (xs[minSegment + 1] - xs[minSegment]) * minFraction + xs[minSegment];
+            ly = (ys[minSegment + 1] - ys[minSegment]) * minFraction + ys[minSegment];
+        }
+
+        out.x = lx / xScale;
+        out.y = ly;
+    }
+
+    /** the distance from p to the segment from a to b */
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        if (ax == bx && ay == by)
+            return distance(px, py, ax, ay);
+
+        double dx = bx - ax;
+        double dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double r = ((px - ax) * dx + (py - ay) * dy) / len2;
+
+        if (r <= 0.0)
+            return distance(px, py, ax, ay);
+        if (r >= 1.0)
+            return distance(px, py, bx, by);
+
+        double s = ((ay - py) * dx - (ax - px) * dy) / len2;
+        return Math.abs(s) * Math.sqrt(len2);
+    }
+
+    /** how far along the segment from a to b p projects, clamped to [0, 1] */
+    private static double segmentFraction(double px, double py, double ax, double ay, double bx, double by) {
+        if (px == ax && py == ay)
+            return 0.0;
+        if (px == bx && py == by)
+            return 1.0;
+
+        double dx = bx - ax;
+        double dy = by - ay;
+        double r = ((px - ax) * dx + (py - ay) * dy) / (dx * dx + dy * dy);
+
+        if (r < 0.0)
+            return 0.0;
+        if (r > 1.0 || Double.isNaN(r))
+            return 1.0;
+        return r;
+    }
+
+    private static double distance(double px, double py, double qx, double qy) {
+        double dx = px - qx;
+        double dy = py - qy;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -1,35 +1,31 @@
 package com.conveyal.geom2gtfs;
 
-import com.vividsolutions.jts.geom.Geometry;
-import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
+import com.google.common.collect.Lists;
 import org.onebusaway.gtfs.model.*;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.onebusaway.gtfs.serialization.GtfsWriter;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 public class Main {
 
 	static final String DEFAULT_AGENCY_ID = "0";
-	private static final String DEFAULT_CAL_ID = "0";
+	static final String DEFAULT_CAL_ID = "0";
+
+	/** the number of features read between updates of the report's per-feature timings and counts */
+	private static final int REPORT_BATCH = 4096;
 
 	private Config config;
 	
@@ -38,23 +34,75 @@ public class Main {
 
 	private GtfsQueue queue = null;
 
+	private RunReport report = null;
+
+	/** in incremental mode, the routes from the last run and the routes from this one */
+	private IncrementalState previousState = null;
+	private IncrementalState nextState = null;
+	/** the config key the state of this run is written with, or null if it isn't written */
+	private String stateKey = null;
+
+	/** in incremental mode, the fingerprint of the features of each route */
+	private Map<String, String> fingerprints = null;
+
+	/** stop generators kept from earlier runs, or null to make a new one for each run */
+	private StopGeneratorCache stopGenerators = null;
+
+	public Main() {
+	}
+
+	/**
+	 * Make a converter that reuses stop generators from the cache rather than making a new one for each run.
+	 */
+	public Main(StopGeneratorCache stopGenerators) {
+		this.stopGenerators = stopGenerators;
+	}
+
 	/**
 	 * wrapper main function creates instance so that calling geom2gtfs twice in the same JVM doesn't cause conflicts
 	 * (this can happen in analyst-server, see conveyal/analyst-server#262)
      */
 	public static void main (String[] args) throws Exception {
+		if (args.length >= 1 && args[0].equals("--server")) {
+			int port = args.length > 1 ? Integer.parseInt(args[1]) : ConversionServer.DEFAULT_PORT;
+			new ConversionServer(port).start();
+			return;
+		}
+		
 		if (args.length < 3) {
 			System.out.println("usage: cmd shapefile_fn config_fn output_fn");
+			System.out.println("   or: cmd --server [port]");
 			return;
 		}
 		new Main().main(args[0], args[1], args[2]);
 	}
 
 	public void main(String fn, String config_fn, String output_fn) throws Exception {
+		report = new RunReport();
+
+		long t = report.begin();
 		config = new Config(config_fn);
+		report.end("config", t);
+
+		report.startProgress(config.getProgressInterval());
+		try {
+			run(fn, output_fn);
+		} finally {
+			report.finish();
+		}
+
+		String reportFn = config.getReportFilename();
+		if (reportFn != null) {
+			System.out.println( "writing report to "+reportFn );
+			report.write(new File(reportFn));
+		}
+	}
 
+	private void run(String fn, String output_fn) throws Exception {
 		// check if config specifies a csv join
+		long t = report.begin();
 		CsvJoinTable csvJoin = config.getCsvJoin();
+		report.end("csv_load", t);
 
 		queue = new GtfsQueue();
 
@@ -78,50 +126,290 @@ public class Main {
 		agency.setTimezone(config.getAgencyTimezone());
 		queue.agencies.add(agency);
 
-		List<Feature> features = getFeatures(fn);
+		Map<String, List<ExtendedFeature>> featureGroups = readFeatureGroups( fn, csvJoin );
+		report.count("route_groups", featureGroups.size());
 		
-		List<ExtendedFeature> extFeatures = joinFeatures( features, csvJoin );
+		File stateFile = new File(output_fn + ".state");
+		int unchanged = 0;
+		if (config.isIncremental()) {
+			if ("cluster".equals(config.getStopStrategy())) {
+				// each route snaps to the stops created by the routes before it, so a change to one route can change others
+				System.out.println( "the cluster stop strategy shares stops between routes, regenerating all routes" );
+			} else {
+				unchanged = startIncremental(featureGroups, stateFile);
+			}
+		}
 		
-		extFeatures = filterFeatures( extFeatures );
+		// the stop generator can be slow to set up, so don't if every route is reused
+		StopGenerator stopGenerator = null;
+		if (unchanged < featureGroups.size()) {
+			t = report.begin();
+			stopGenerator = stopGenerators != null ? stopGenerators.get(config) : config.getStopGenerator();
+			report.end("stop_generator_init", t);
+		}
 		
-		Map<String, List<ExtendedFeature>> featureGroups = groupFeatures( extFeatures );
+		GtfsFeedWriter gtfsWriter = new GtfsFeedWriter(new File(output_fn));
+		File stateTmp = new File(stateFile.getPath() + ".tmp");
+		boolean written = false;
+		try {
+			if (stateKey != null) {
+				// routes are written to the new state as they are appended, rather than all kept until the end
+				nextState = IncrementalState.create(stateTmp, stateKey);
+			}
+			
+			boolean streaming = config.isStreaming();
+			if (streaming) {
+				System.out.println( "streaming to "+output_fn );
+			}
 		
-		StopGenerator stopGenerator = config.getStopGenerator();
+			int threads = config.getThreads();
+			if (threads > 1 && stopGenerator != null && !stopGenerator.isThreadSafe()) {
+				System.out.println( "stop generator cannot be shared between threads, generating routes on a single thread" );
+				threads = 1;
+			}
 		
-		for( Entry<String, List<ExtendedFeature>> group : featureGroups.entrySet() ){		    
-			featToGtfs(group.getValue(), agency, stopGenerator, group.getKey());
-		}
+			if (stopGenerator != null) {
+				// let the generator see every route it will generate, in the order they will be appended
+				t = report.begin();
+				List<List<ExtendedFeature>> toGenerate = new ArrayList<List<ExtendedFeature>>();
+				for (Entry<String, List<ExtendedFeature>> group : featureGroups.entrySet()) {
+					if (previousState == null || !previousState.isUnchanged(group.getKey(), fingerprints.get(group.getKey()))) {
+						toGenerate.add(group.getValue());
+					}
+				}
+				stopGenerator.prepare(toGenerate, threads);
+				report.end("stop_placement", t);
+			}
+		
+			if (threads > 1) {
+				generateParallel(featureGroups, agency, stopGenerator, gtfsWriter, streaming, threads);
+			} else {
+				for( Entry<String, List<ExtendedFeature>> group : featureGroups.entrySet() ){		    
+					GtfsQueue routeQueue = generateRoute(group.getValue(), agency, stopGenerator, group.getKey());
+					appendRoute(group.getKey(), routeQueue, gtfsWriter, streaming);
+				}
+			}
 
-		System.out.println( "writing to "+output_fn );
-		GtfsWriter gtfsWriter = new GtfsWriter();
-		gtfsWriter.setOutputLocation(new File(output_fn));
-		queue.dumpToWriter(gtfsWriter);
-		gtfsWriter.close();
+			System.out.println( "writing to "+output_fn );
+			t = report.begin();
+			queue.flush(gtfsWriter);
+			gtfsWriter.close();
+			written = true;
+			report.end("gtfs_write", t);
+		} finally {
+			// don't leave a partly written feed, or in server mode a pile of them, behind after a failure
+			if (!written) {
+				gtfsWriter.abort();
+				if (nextState != null) {
+					nextState.abort();
+				}
+			}
+		}
+		
+		if (nextState != null) {
+			// finish the state only once the output is complete, and replace the old state in one step
+			t = report.begin();
+			nextState.close();
+			Files.move(stateTmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			report.end("incremental_state", t);
+		}
 		System.out.println( "done" );
 	}
 
-	private Map<String, List<ExtendedFeature>> groupFeatures(List<ExtendedFeature> extFeatures) {
-		Map<String, List<ExtendedFeature>> ret = new HashMap<String, List<ExtendedFeature>>();
+	/**
+	 * Fingerprint every route and read the routes stored by the last run.
+	 * @return the number of routes that can be reused from the last run.
+	 */
+	private int startIncremental(Map<String, List<ExtendedFeature>> featureGroups, File stateFile) throws IOException {
+		long t = report.begin();
+		
+		stateKey = IncrementalState.configKey(config);
+		previousState = IncrementalState.read(stateFile, stateKey);
 		
-		// gather by route id
-		for( ExtendedFeature exft : extFeatures ){
-			String id = exft.getProperty( config.getRouteIdPropName() );
+		fingerprints = new HashMap<String, String>();
+		int unchanged = 0;
+		for (Entry<String, List<ExtendedFeature>> group : featureGroups.entrySet()) {
+			String fingerprint = IncrementalState.fingerprint(group.getKey(), group.getValue());
+			fingerprints.put(group.getKey(), fingerprint);
 			
-			if (id == null) {
-			    id = "generated_" + nextId++;
+			if (previousState != null && previousState.isUnchanged(group.getKey(), fingerprint)) {
+				unchanged++;
 			}
-			    
+		}
+		
+		report.end("incremental_state", t);
+		System.out.println( unchanged + " of " + featureGroups.size() + " routes unchanged since the last run" );
+		return unchanged;
+	}
+
+	/**
+	 * Generate the GTFS entities for a single route, or in incremental mode reuse the ones from the last run if
+	 * the route's features haven't changed.
+	 */
+	private GtfsQueue generateRoute(List<ExtendedFeature> group, Agency agency,
+			StopGenerator stopGenerator, String routeId) throws Exception {
+		if (previousState != null && previousState.isUnchanged(routeId, fingerprints.get(routeId))) {
+			report.count("routes_reused", 1);
+			return previousState.load(routeId, agency);
+		}
+		
+		return featToGtfs(group, agency, stopGenerator, routeId);
+	}
+
+	/**
+	 * Generate routes on several threads. Routes are appended to the queue in the same order as they would be
+	 * on a single thread, and ids are assigned as they are appended, so the output is identical to a single-threaded
+	 * run. At most a few routes per thread are held waiting for earlier routes to finish.
+	 */
+	private void generateParallel(Map<String, List<ExtendedFeature>> featureGroups, final Agency agency,
+			final StopGenerator stopGenerator, GtfsFeedWriter gtfsWriter, boolean streaming, int threads) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		int maxPending = threads * 4;
+		
+		try {
+			Iterator<Entry<String, List<ExtendedFeature>>> groups = featureGroups.entrySet().iterator();
+			Deque<ForkJoinTask<GtfsQueue>> pending = new ArrayDeque<ForkJoinTask<GtfsQueue>>();
+			Deque<String> pendingIds = new ArrayDeque<String>();
 			
-			List<ExtendedFeature> group = ret.get(id);
-			if(group==null){
-				group = new ArrayList<ExtendedFeature>();
-				ret.put(id, group);
+			while (groups.hasNext() || !pending.isEmpty()) {
+				while (groups.hasNext() && pending.size() < maxPending) {
+					final Entry<String, List<ExtendedFeature>> group = groups.next();
+					pending.add(pool.submit(new Callable<GtfsQueue>() {
+						@Override
+						public GtfsQueue call() throws Exception {
+							return generateRoute(group.getValue(), agency, stopGenerator, group.getKey());
+						}
+					}));
+					pendingIds.add(group.getKey());
+				}
+				
+				GtfsQueue routeQueue;
+				try {
+					routeQueue = pending.poll().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				}
+				
+				appendRoute(pendingIds.poll(), routeQueue, gtfsWriter, streaming);
 			}
-			
-			group.add(exft);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Add a generated route to the main queue, and in streaming mode write it out right away so it doesn't sit
+	 * on the heap for the rest of the run.
+	 */
+	private void appendRoute(String routeId, GtfsQueue routeQueue, GtfsFeedWriter gtfsWriter, boolean streaming)
+			throws IOException {
+		if (nextState != null) {
+			nextState.put(routeId, fingerprints.get(routeId), routeQueue);
+		}
+		
+		int routeStops = routeQueue.stops.size();
+		int newStops = queue.append(routeQueue);
+		
+		report.count("routes", routeQueue.routes.size());
+		report.count("stops", newStops);
+		report.count("trips", routeQueue.trips.size());
+		report.count("stop_times", routeQueue.stoptimes.size());
+		report.count("frequencies", routeQueue.frequencies.size());
+		
+		for (Route route : routeQueue.routes) {
+			System.out.println( "\"" + route.getShortName() + "\": " + newStops + " new stops, "
+					+ (routeStops - newStops) + " shared with other routes" );
+		}
+		
+		if (streaming) {
+			long t = report.begin();
+			queue.flush(gtfsWriter);
+			report.end("gtfs_write", t);
+		}
+	}
+
+	/** Add the counts and the timings of features read since the last call to the report */
+	private void reportFeatures(long features, long filteredOut, RunReport.Tally... tallies) {
+		report.count("features", features);
+		report.count("features_filtered_out", filteredOut);
+		for (RunReport.Tally tally : tallies) {
+			tally.flush();
+		}
+	}
+
+	/**
+	 * Read the features of the shapefile, join and filter them as they are read, and group them by route id.
+	 * Features are never all held in a list, and features that don't pass the filters are dropped right away.
+	 * Features that do pass are cut down to their geometry and the properties the config reads from them, so the
+	 * attributes nothing uses aren't kept for the rest of the run.
+	 */
+	private Map<String, List<ExtendedFeature>> readFeatureGroups(String fn, CsvJoinTable csvJoin) throws IOException {
+		Map<String, List<ExtendedFeature>> ret = new HashMap<String, List<ExtendedFeature>>();
+		
+		FeatureProjection projection = new FeatureProjection(config.getFeatureProperties());
+		
+		// each feature is timed and counted locally, and added to the report a batch at a time
+		RunReport.Tally readTime = report.tally("shapefile_read");
+		RunReport.Tally joinTime = report.tally("csv_join");
+		RunReport.Tally filterTime = report.tally("filter");
+		RunReport.Tally groupTime = report.tally("group");
+		long features = 0;
+		long filteredOut = 0;
+		
+		ShapefileFeatureReader reader = new ShapefileFeatureReader(fn);
+		try {
+			long t = report.begin();
+			while (reader.hasNext()) {
+				if (features == REPORT_BATCH) {
+					reportFeatures(features, filteredOut, readTime, joinTime, filterTime, groupTime);
+					features = 0;
+					filteredOut = 0;
+					t = report.begin();
+				}
+				
+				SimpleFeature feature = reader.next();
+				t = readTime.end(t);
+				features++;
+				
+				ExtendedFeature exft = new ExtendedFeature(feature, csvJoin);
+				t = joinTime.end(t);
+				
+				boolean passes = config.passesFilter(exft);
+				t = filterTime.end(t);
+				if (!passes) {
+					filteredOut++;
+					continue;
+				}
+				
+				exft.project(projection);
+				
+				// gather by route id
+				String id = exft.getProperty( config.getRouteIdProperty() );
+				
+				if (id == null) {
+				    id = "generated_" + nextId++;
+				}
+				
+				List<ExtendedFeature> group = ret.get(id);
+				if(group==null){
+					group = new ArrayList<ExtendedFeature>();
+					ret.put(id, group);
+				}
+				
+				group.add(exft);
+				t = groupTime.end(t);
+			}
+			reportFeatures(features, filteredOut, readTime, joinTime, filterTime, groupTime);
+		} finally {
+			reader.close();
 		}
 		
 		// order each group by segment
+		long t = report.begin();
 		for( List<ExtendedFeature> group : ret.values() ){
 			Collections.sort(group, new Comparator<ExtendedFeature>(){
 
@@ -148,45 +436,28 @@ public class Main {
 				
 			});
 		}
+		report.end("group", t);
 		
 		return ret;
 	}
 
-	private List<ExtendedFeature> filterFeatures(List<ExtendedFeature> extFeatures) {
-		List<ExtendedFeature> ret = new ArrayList<ExtendedFeature>();
-		
-		for( ExtendedFeature exft : extFeatures ){
-			if (config.passesFilter(exft)) {
-				ret.add(exft);
-			}
-		}
-		
-		return ret;
-	}
-
-	private List<ExtendedFeature> joinFeatures(List<Feature> features, CsvJoinTable csvJoin) {
-		List<ExtendedFeature> ret = new ArrayList<ExtendedFeature>();
-		
-		for (Feature feat : features) {
-
-			ExtendedFeature exft = new ExtendedFeature(feat, csvJoin);
-			
-			ret.add( exft );
-		}
-		
-		return ret;
-	}
-
-	private void featToGtfs(List<ExtendedFeature> group, Agency agency,
+	/**
+	 * Generate the GTFS entities for a single route. They are returned in a separate queue so that this can be
+	 * called from several threads at once; trips and created stops get their final ids when the returned queue
+	 * is appended to the main queue.
+	 */
+	private GtfsQueue featToGtfs(List<ExtendedFeature> group, Agency agency,
 	        StopGenerator stopGenerator, String routeId) throws Exception {
 		
+		GtfsQueue out = new GtfsQueue();
+		
 		ExtendedFeature exemplar = group.get(0);
 
 		// get route type
 		Integer mode = config.getMode(exemplar);
 
 		// generate route
-		String routeName = exemplar.getProperty(config.getRouteNamePropName());
+		String routeName = exemplar.getProperty(config.getRouteNameProperty());
 		
 		if (routeName == null)
 		    routeName = routeId;
@@ -198,8 +469,9 @@ public class Main {
 		route.setShortName(routeName);
 		route.setAgency(agency);
 		route.setType(mode);
-		queue.routes.add(route);
+		out.routes.add(route);
 		
+		long t = report.begin();
 		List<ProtoRoute> protoRoutes = new ArrayList<ProtoRoute>();
 		for(ExtendedFeature exft : group){
 			// figure out spacing and speed for mode
@@ -209,40 +481,47 @@ public class Main {
 			protoRoutes.add( protoroute );
 		}
 
+		t = report.end("stop_generation", t);
+
 		Map<ProtoRouteStop, Stop> prsStops = new HashMap<ProtoRouteStop, Stop>();
 		for(ProtoRoute protoroute : protoRoutes ){
 			for (ProtoRouteStop prs : protoroute.ret) {
 				// generate stops
 				Stop stop = prs.stop;
 				
-				if (!queue.stops.contains(stop))
-				    queue.stops.add(stop);
+				out.stops.add(stop);
 	
 				prsStops.put(prs, stop);
 			}
 		}
 		
 		if( !config.isExact() ){
-			makeFrequencyTrip(exemplar, protoRoutes, route, prsStops, false, config.usePeriods());
+			makeFrequencyTrip(out, exemplar, protoRoutes, route, prsStops, false, config.usePeriods());
 			if (config.isBidirectional()) {
-				makeFrequencyTrip(exemplar, protoRoutes, route, prsStops, true, config.usePeriods());
+				makeFrequencyTrip(out, exemplar, protoRoutes, route, prsStops, true, config.usePeriods());
 			}
 		} else {
-			makeTimetableTrips(exemplar, protoRoutes, route, prsStops, false, config.usePeriods());
+			makeTimetableTrips(out, exemplar, protoRoutes, route, prsStops, false, config.usePeriods());
 			if (config.isBidirectional()) {
-				makeTimetableTrips(exemplar, protoRoutes, route, prsStops, true, config.usePeriods());
+				makeTimetableTrips(out, exemplar, protoRoutes, route, prsStops, true, config.usePeriods());
 			}
 		}
+		report.end("trip_expansion", t);
 
+		return out;
 	}
 
-	private void makeTimetableTrips(ExtendedFeature exft, List<ProtoRoute> protoRoutes, Route route,
+	private void makeTimetableTrips(GtfsQueue out, ExtendedFeature exft, List<ProtoRoute> protoRoutes, Route route,
 			Map<ProtoRouteStop, Stop> prsStops, boolean reverse, boolean usePeriods) throws FeatureDoesntDefineTimeWindowException {
+		// every trip in this direction has the same travel times, so they are only computed once
+		List<ProtoRoute> segments = reverse ? Lists.reverse(protoRoutes) : protoRoutes;
+		int pattern = out.stoptimes.addPattern(makePattern(segments, prsStops, reverse));
+		
 		// for each window
 		for (ServiceWindow window : config.getServiceWindows()) {
 			Double headway;
 			try{
-				headway = getHeadway(exft, window.propName, usePeriods);
+				headway = getHeadway(exft, window, usePeriods);
 			} catch (FeatureDoesntDefineTimeWindowException ex){
 				System.out.println( "route id:"+route.getId().getId()+" has no value for time window "+window.propName );
 				if( config.tolerant() ){
@@ -258,43 +537,24 @@ public class Main {
 			// generate a series of trips
 			for(int t=window.startSecs(); t<window.endSecs(); t+=headway){
 				Trip trip = makeNewTrip(route, reverse);
-				queue.trips.add(trip);
-				
-				int segStart = t;
-				int firstStopTimeSeq=0;
-				List<StopTime> stopTimes = new ArrayList<StopTime>();
-				
-				for(int i=0; i<protoRoutes.size(); i++){
-					int index=i;
-					if(reverse)
-						index = protoRoutes.size()-1-i;
-					
-					ProtoRoute protoRoute = protoRoutes.get(index);
-					
-					List<StopTime> segStopTimes = createStopTimes(protoRoute.ret, prsStops, reverse, protoRoute.speed, trip, segStart, firstStopTimeSeq, protoRoute.length);
-					stopTimes.addAll(segStopTimes);
-					segStart += protoRoute.getDuration();
-					firstStopTimeSeq += segStopTimes.size();
-				}
-
-				
-				queue.stoptimes.addAll(stopTimes);
+				out.trips.add(trip);
+				out.stoptimes.addTrip(trip, pattern, t);
 			}
 		}
 		
 	}
 
-	private void makeFrequencyTrip(ExtendedFeature exft, List<ProtoRoute> protoRoutes, Route route,
+	private void makeFrequencyTrip(GtfsQueue out, ExtendedFeature exft, List<ProtoRoute> protoRoutes, Route route,
 			Map<ProtoRouteStop, Stop> prsStops, boolean reverse, boolean usePeriods) throws FeatureDoesntDefineTimeWindowException {
 		// generate a trip
 		Trip trip = makeNewTrip(route, reverse);
-		queue.trips.add(trip);
+		out.trips.add(trip);
 
 		// generate a frequency
 		for (ServiceWindow window : config.getServiceWindows()) {
 			Double headway;
 			try{
-				headway = getHeadway(exft, window.propName, usePeriods);
+				headway = getHeadway(exft, window, usePeriods);
 			} catch (FeatureDoesntDefineTimeWindowException ex){
 				System.out.println( "feature for route id:"+route.getId().getId()+" does not define time window '"+window.propName+"'" );
 				if( config.tolerant() ){
@@ -310,27 +570,17 @@ public class Main {
 			headway /= config.waitFactor();
 			
 			Frequency freq = makeFreq(headway, window.startSecs(), window.endSecs(), trip);
-			queue.frequencies.add(freq);
+			out.frequencies.add(freq);
 		}
 
-		int segStart = 0;
-		int firstStopTimeSeq=0;
-		List<StopTime> newStopTimes = new ArrayList<StopTime>();
-		for( ProtoRoute protoRoute : protoRoutes ){
-			List<StopTime> segStopTimes = createStopTimes(protoRoute.ret, prsStops, reverse, protoRoute.speed, trip, segStart, firstStopTimeSeq, protoRoute.length);
-			newStopTimes.addAll(segStopTimes);
-			segStart += protoRoute.getDuration();
-			firstStopTimeSeq += segStopTimes.size();
-		}
-				
-		queue.stoptimes.addAll(newStopTimes);
-		
+		int pattern = out.stoptimes.addPattern(makePattern(protoRoutes, prsStops, reverse));
+		out.stoptimes.addTrip(trip, pattern, 0);
 	}
 
+	/** Make a new trip. It does not get an id until it is appended to the main queue. */
 	private Trip makeNewTrip(Route route, boolean reverse) {
 		Trip trip = new Trip();
 		trip.setRoute(route);
-		trip.setId(new AgencyAndId(DEFAULT_AGENCY_ID, String.valueOf(queue.trips.size())));
 		trip.setServiceId(new AgencyAndId(DEFAULT_AGENCY_ID, DEFAULT_CAL_ID));
 		if(reverse){
 			trip.setDirectionId("1");
@@ -340,9 +590,26 @@ public class Main {
 		return trip;
 	}
 
-	private static List<StopTime> createStopTimes(List<ProtoRouteStop> prss, Map<ProtoRouteStop, Stop> prsStops,
-			boolean reverse, double speed, Trip trip, int tripStart, int firstStopTimeSequence, double segLen) {
-		List<StopTime> newStopTimes = new ArrayList<StopTime>();
+	/**
+	 * Make the pattern of stops and travel times shared by all trips in one direction of a route.
+	 * @param segments the segments of the route, in the order they are traversed.
+	 */
+	static StopTimeStore.Pattern makePattern(List<ProtoRoute> segments, Map<ProtoRouteStop, Stop> prsStops,
+			boolean reverse) {
+		StopTimeStore.Pattern pattern = new StopTimeStore.Pattern();
+		int segStart = 0;
+		for( ProtoRoute protoRoute : segments ){
+			createStopTimes(pattern, protoRoute.ret, prsStops, reverse, protoRoute.speed, segStart, protoRoute.length);
+			segStart += protoRoute.getDuration();
+		}
+		return pattern;
+	}
+
+	/**
+	 * Add the stops of one segment of a route to a pattern, with their times relative to the start of the trip.
+	 */
+	static void createStopTimes(StopTimeStore.Pattern pattern, List<ProtoRouteStop> prss, Map<ProtoRouteStop, Stop> prsStops,
+			boolean reverse, double speed, int tripStart, double segLen) {
 		for (int i = 0; i < prss.size(); i++) {
 
 			int ix = i;
@@ -352,12 +619,6 @@ public class Main {
 			ProtoRouteStop prs = prss.get(ix);
 			Stop stop = prsStops.get(prs);
 
-			// generate stoptime
-			StopTime stoptime = new StopTime();
-			stoptime.setStop(stop);
-			stoptime.setTrip(trip);
-			stoptime.setStopSequence(i+firstStopTimeSequence);
-			
 			double dist;
 			if(reverse){
 				dist = segLen-prs.dist;
@@ -366,13 +627,9 @@ public class Main {
 			}
 			int time = (int) (dist / speed) + tripStart;
 			
-			stoptime.setArrivalTime(time);
-			stoptime.setDepartureTime(time);
-			
-			newStopTimes.add(stoptime);
-			
+			// generate stoptime
+			pattern.add(stop, time);
 		}
-		return newStopTimes;
 	}
 
 	private static Frequency makeFreq(double headway, int beginSecs, int endSecs, Trip trip) {
@@ -389,9 +646,9 @@ public class Main {
 		return freq;
 	}
 
-	private Double getHeadway(ExtendedFeature exft, String propName, boolean usePeriods) throws FeatureDoesntDefineTimeWindowException {
+	private Double getHeadway(ExtendedFeature exft, ServiceWindow window, boolean usePeriods) throws FeatureDoesntDefineTimeWindowException {
 		double headway;
-		String freqStr = exft.getProperty(propName);
+		String freqStr = exft.getProperty(window.property);
 		Double freqDbl;
 		
 		if (freqStr == null || freqStr.equals("None")) {
@@ -402,7 +659,7 @@ public class Main {
 		}
 		
 		if (freqDbl == 0.0 || freqDbl == null) {
-			throw new FeatureDoesntDefineTimeWindowException(propName);
+			throw new FeatureDoesntDefineTimeWindowException(window.propName);
 		}
 		
 		if (usePeriods) {
@@ -414,46 +671,16 @@ public class Main {
 	}
 
 	static List<Feature> getFeatures(String shp_filename) throws MalformedURLException, IOException {
-		// construct shapefile factory
-		File file = new File(shp_filename);
-		Map<String, URL> map = new HashMap<String, URL>();
-		map.put("url", file.toURI().toURL());
-		DataStore dataStore = DataStoreFinder.getDataStore(map);
-
-		// get shapefile as generic 'feature source'
-		String typeName = dataStore.getTypeNames()[0];
-		SimpleFeatureSource featureSource = dataStore.getFeatureSource(dataStore.getTypeNames()[0]);
-
-		SimpleFeatureType schema = featureSource.getSchema();
-
-		CoordinateReferenceSystem shpCRS = schema.getCoordinateReferenceSystem();
-		
-		SimpleFeatureCollection collection = featureSource.getFeatures();
-		SimpleFeatureIterator iterator = collection.features();
+		List<Feature> ret = new ArrayList<Feature>();
 		
-		List<Feature> ret = new ArrayList<Feature>(collection.size());
-		
-		if (shpCRS != null && !shpCRS.equals(DefaultGeographicCRS.WGS84)) {
-			try {
-			MathTransform transform = CRS.findMathTransform(shpCRS, DefaultGeographicCRS.WGS84, true);
-
-			while (iterator.hasNext()) {
-				SimpleFeature next = iterator.next();
-				
-				Geometry geom = (Geometry) next.getDefaultGeometry();
-				next.setDefaultGeometry(JTS.transform(geom, transform));
-				
-				ret.add(next);
-			}
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+		ShapefileFeatureReader reader = new ShapefileFeatureReader(shp_filename);
+		try {
+			while (reader.hasNext()) {
+				ret.add(reader.next());
 			}
+		} finally {
+			reader.close();
 		}
-		else {
-			while (iterator.hasNext()) {
-				ret.add(iterator.next());
-			}
-		}	
 			
 		return ret;
 	}
@@ -0,0 +1,425 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A compact spatial index of street geometries, used to snap stops to streets and intersections.
+ *
+ * Vertices of all ways are stored in one flat array, with a bitset flagging the vertices that are
+ * intersections. Ways are indexed by a static packed R-tree: way bounding boxes are sorted along a Hilbert
+ * curve and grouped bottom-up into nodes of NODE_SIZE entries, with all boxes kept in a single array. Ways are
+ * added while the index is being built, and it is read-only after build() is called.
+ */
+public class PackedWayIndex {
+    private static final int NODE_SIZE = 16;
+
+    /** x and y of each vertex, interleaved */
+    private double[] coords = new double[1024];
+    private int vertexCount = 0;
+
+    /** the vertices of way w are wayStart[w] up to wayStart[w + 1] */
+    private int[] wayStart = new int[257];
+    private int wayCount = 0;
+
+    /** bit v is set if vertex v is an intersection */
+    private BitSet intersections = new BitSet();
+
+    /** bounding boxes of the tree, four doubles each. The first wayCount boxes are the ways themselves. */
+    private double[] boxes;
+
+    /** for leaf boxes, the way; for node boxes, the position in boxes of its first child */
+    private int[] indices;
+
+    /** the position in boxes of the end of each level of the tree, starting from the leaves */
+    private int[] levelBounds;
+
+    private boolean built = false;
+
+    /**
+     * Add a way.
+     * @param lons the longitude of each vertex
+     * @param lats the latitude of each vertex
+     * @param isIntersection whether each vertex is an intersection
+     */
+    public void add(double[] lons, double[] lats, boolean[] isIntersection) {
+        if (built)
+            throw new IllegalStateException("Cannot add ways to an index that has already been built.");
+
+        int n = lons.length;
+
+        if ((vertexCount + n) * 2 > coords.length)
+            coords = Arrays.copyOf(coords, Math.max(coords.length * 2, (vertexCount + n) * 2));
+
+        if (wayCount + 2 > wayStart.length)
+            wayStart = Arrays.copyOf(wayStart, wayStart.length * 2);
+
+        for (int i = 0; i < n; i++) {
+            coords[(vertexCount + i) * 2] = lons[i];
+            coords[(vertexCount + i) * 2 + 1] = lats[i];
+            if (isIntersection[i])
+                intersections.set(vertexCount + i);
+        }
+
+        wayStart[wayCount] = vertexCount;
+        vertexCount += n;
+        wayCount++;
+        wayStart[wayCount] = vertexCount;
+    }
+
+    /** Build the spatial index. No more ways can be added after this is called. */
+    public void build() {
+        coords = Arrays.copyOf(coords, vertexCount * 2);
+        wayStart = Arrays.copyOf(wayStart, wayCount + 1);
+
+        // figure out how many nodes there are on each level of the tree
+        int n = wayCount;
+        int numNodes = n;
+        int[] bounds = new int[32];
+        int levels = 0;
+        bounds[levels++] = n * 4;
+        do {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            numNodes += n;
+            bounds[levels++] = numNodes * 4;
+        } while (n > 1);
+        levelBounds = Arrays.copyOf(bounds, levels);
+
+        boxes = new double[numNodes * 4];
+        indices = new int[numNodes];
+
+        if (wayCount == 0) {
+            built = true;
+            return;
+        }
+
+        // compute way bounding boxes, and the extent of all of them
+        double[] wayBoxes = new double[wayCount * 4];
+        Envelope extent = new Envelope();
+        for (int w = 0; w < wayCount; w++) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int v = wayStart[w]; v < wayStart[w + 1]; v++) {
+                double x = coords[v * 2], y = coords[v * 2 + 1];
+                if (x < minX) minX = x;
+                if (y < minY) minY = y;
+                if (x > maxX) maxX = x;
+                if (y > maxY) maxY = y;
+            }
+            wayBoxes[w * 4] = minX;
+            wayBoxes[w * 4 + 1] = minY;
+            wayBoxes[w * 4 + 2] = maxX;
+            wayBoxes[w * 4 + 3] = maxY;
+            extent.expandToInclude(minX, minY);
+            extent.expandToInclude(maxX, maxY);
+        }
+
+        // sort the ways along a Hilbert curve so that nearby ways end up in the same nodes. The sort key holds
+        // the Hilbert value in the high bits and the way in the low bits.
+        double width = extent.getWidth() > 0 ? extent.getWidth() : 1;
+        double height = extent.getHeight() > 0 ? extent.getHeight() : 1;
+        long[] keys = new long[wayCount];
+        for (int w = 0; w < wayCount; w++) {
+            double cx = (wayBoxes[w * 4] + wayBoxes[w * 4 + 2]) / 2;
+            double cy = (wayBoxes[w * 4 + 1] + wayBoxes[w * 4 + 3]) / 2;
+            int hx = (int) (0xFFFF * (cx - extent.getMinX()) / width);
+            int hy = (int) (0xFFFF * (cy - extent.getMinY()) / height);
+            keys[w] = (hilbert(hx, hy) >>> 1) << 32 | w;
+        }
+        Arrays.sort(keys);
+
+        for (int i = 0; i < wayCount; i++) {
+            int w = (int) keys[i];
+            System.arraycopy(wayBoxes, w * 4, boxes, i * 4, 4);
+            indices[i] = w;
+        }
+
+        // build the node levels bottom-up
+        int pos = 0;
+        int out = wayCount * 4;
+        for (int level = 0; level < levelBounds.length - 1; level++) {
+            int end = levelBounds[level];
+            while (pos < end) {
+                int nodeIndex = pos;
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < NODE_SIZE && pos < end; i++, pos += 4) {
+                    minX = Math.min(minX, boxes[pos]);
+                    minY = Math.min(minY, boxes[pos + 1]);
+                    maxX = Math.max(maxX, boxes[pos + 2]);
+                    maxY = Math.max(maxY, boxes[pos + 3]);
+                }
+                indices[out / 4] = nodeIndex;
+                boxes[out++] = minX;
+                boxes[out++] = minY;
+                boxes[out++] = maxX;
+                boxes[out++] = maxY;
+            }
+        }
+
+        built = true;
+    }
+
+    /** Find the ways whose bounding boxes intersect the envelope. */
+    public int[] query(Envelope env) {
+        if (!built)
+            throw new IllegalStateException("Index has not been built.");
+
+        int[] result = new int[16];
+        int resultCount = 0;
+
+        if (wayCount == 0)
+            return new int[0];
+
+        int[] stack = new int[16];
+        int stackSize = 0;
+
+        int nodeIndex = boxes.length - 4;
+        while (true) {
+            int end = Math.min(nodeIndex + NODE_SIZE * 4, upperBound(nodeIndex));
+
+            for (int pos = nodeIndex; pos < end; pos += 4) {
+                if (env.getMaxX() < boxes[pos] || env.getMaxY() < boxes[pos + 1] ||
+                        env.getMinX() > boxes[pos + 2] || env.getMinY() > boxes[pos + 3])
+                    continue;
+
+                int index = indices[pos / 4];
+                if (nodeIndex < wayCount * 4) {
+                    if (resultCount == result.length)
+                        result = Arrays.copyOf(result, resultCount * 2);
+                    result[resultCount++] = index;
+                }
+                else {
+                    if (stackSize == stack.length)
+                        stack = Arrays.copyOf(stack, stackSize * 2);
+                    stack[stackSize++] = index;
+                }
+            }
+
+            if (stackSize == 0)
+                break;
+
+            nodeIndex = stack[--stackSize];
+        }
+
+        return Arrays.copyOf(result, resultCount);
+    }
+
+    /**
+     * Start a search for the ways whose bounding boxes intersect the envelope, nearest to (x, y), in degrees, first.
+     * The search finds the same ways as query(), but in order of a lower bound on their distance rather than in
+     * the order of the tree, so a search that only needs the nearest way can stop after looking at a few.
+     */
+    public NearestSearch nearest(Envelope env, double x, double y) {
+        if (!built)
+            throw new IllegalStateException("Index has not been built.");
+
+        return new NearestSearch(env, x, y);
+    }
+
+    /**
+     * A best-first search of the tree. Nodes and ways are queued by a lower bound on the distance from the point
+     * to their bounding boxes, so nodes are only opened once everything nearer has been returned.
+     */
+    public class NearestSearch {
+        private final Envelope env;
+        private final double x, y, cosX;
+
+        /** boxes, by their position in boxes */
+        private final BestFirstQueue queue = new BestFirstQueue();
+
+        private int rank;
+
+        private NearestSearch(Envelope env, double xDeg, double yDeg) {
+            this.env = env;
+            this.x = Math.toRadians(xDeg);
+            this.y = Math.toRadians(yDeg);
+            this.cosX = Math.cos(x);
+
+            if (wayCount > 0)
+                add(boxes.length - 4);
+        }
+
+        /**
+         * @return the way with the next smallest lower bound, if that bound is no more than limit meters, or -1.
+         * The limit can be lowered from call to call as nearer ways are found.
+         */
+        public int next(double limit) {
+            while (!queue.isEmpty() && queue.peekKey() <= limit) {
+                int pos = queue.poll();
+                if (pos < wayCount * 4) {
+                    rank = rank(pos / 4);
+                    return indices[pos / 4];
+                }
+
+                int child = indices[pos / 4];
+                int end = Math.min(child + NODE_SIZE * 4, upperBound(child));
+                for (int p = child; p < end; p += 4) {
+                    add(p);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * The position among the results of query() of the way last returned by next(). Where several ways are
+         * equally near, the one query() would have returned first can be chosen, as it was before there was a
+         * nearest search.
+         */
+        public int rank() {
+            return rank;
+        }
+
+        private void add(int pos) {
+            if (env.getMaxX() < boxes[pos] || env.getMaxY() < boxes[pos + 1] ||
+                    env.getMinX() > boxes[pos + 2] || env.getMinY() > boxes[pos + 3])
+                return;
+
+            double bound = GeoMath.lowerBoundDistance(x, y, cosX,
+                    Math.toRadians(boxes[pos]), Math.toRadians(boxes[pos + 1]),
+                    Math.toRadians(boxes[pos + 2]), Math.toRadians(boxes[pos + 3]));
+            queue.add(bound, 0, pos);
+        }
+    }
+
+    /**
+     * The order in which query() returns the way in leaf box i relative to the others. query() opens the children
+     * of a node last first, and returns the ways in a leaf node first first, so ways come out by leaf node
+     * descending and then by box ascending, whichever of them match.
+     */
+    private int rank(int i) {
+        int leafNodes = (wayCount + NODE_SIZE - 1) / NODE_SIZE;
+        return (leafNodes - 1 - i / NODE_SIZE) * NODE_SIZE + i % NODE_SIZE;
+    }
+
+    /** Write a built index, to be read back by read() */
+    public void write(DataOutputStream out) throws IOException {
+        if (!built)
+            throw new IllegalStateException("Index has not been built.");
+
+        SnappingIndexCache.writeDoubles(out, coords);
+        SnappingIndexCache.writeInts(out, wayStart);
+        SnappingIndexCache.writeLongs(out, intersections.toLongArray());
+        SnappingIndexCache.writeDoubles(out, boxes);
+        SnappingIndexCache.writeInts(out, indices);
+        SnappingIndexCache.writeInts(out, levelBounds);
+    }
+
+    /** Read an index written by write(). */
+    public static PackedWayIndex read(ByteBuffer buf) {
+        PackedWayIndex ret = new PackedWayIndex();
+        ret.coords = SnappingIndexCache.readDoubles(buf);
+        ret.vertexCount = ret.coords.length / 2;
+        ret.wayStart = SnappingIndexCache.readInts(buf);
+        ret.wayCount = ret.wayStart.length - 1;
+        ret.intersections = BitSet.valueOf(SnappingIndexCache.readLongs(buf));
+        ret.boxes = SnappingIndexCache.readDoubles(buf);
+        ret.indices = SnappingIndexCache.readInts(buf);
+        ret.levelBounds = SnappingIndexCache.readInts(buf);
+        ret.built = true;
+        return ret;
+    }
+
+    /** the number of ways in the index */
+    public int size() {
+        return wayCount;
+    }
+
+    /** the number of vertices in way w */
+    public int getVertexCount(int way) {
+        return wayStart[way + 1] - wayStart[way];
+    }
+
+    /** the x (longitude) of the given vertex of the given way */
+    public double getX(int way, int vertex) {
+        return coords[(wayStart[way] + vertex) * 2];
+    }
+
+    /** the y (latitude) of the given vertex of the given way */
+    public double getY(int way, int vertex) {
+        return coords[(wayStart[way] + vertex) * 2 + 1];
+    }
+
+    public Coordinate getCoordinate(int way, int vertex) {
+        int v = wayStart[way] + vertex;
+        return new Coordinate(coords[v * 2], coords[v * 2 + 1]);
+    }
+
+    public Coordinate[] getCoordinates(int way) {
+        Coordinate[] ret = new Coordinate[getVertexCount(way)];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = getCoordinate(way, i);
+        }
+        return ret;
+    }
+
+    /** is the given vertex of the given way an intersection? */
+    public boolean isIntersection(int way, int vertex) {
+        return intersections.get(wayStart[way] + vertex);
+    }
+
+    /** the position in boxes of the end of the tree level containing the box at pos */
+    private int upperBound(int pos) {
+        for (int bound : levelBounds) {
+            if (bound > pos)
+                return bound;
+        }
+        return levelBounds[levelBounds.length - 1];
+    }
+
+    /**
+     * The position of the point (x, y) along a Hilbert curve filling a 2^16 by 2^16 grid.
+     * See "Fast Hilbert curve generation, sorting, and range queries" by rawrunprotected.
+     */
+    private static long hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >> 1);
+        int B = (a >> 1) ^ a;
+        int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+        int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >> 2)) ^ (b & (b >> 2)));
+        B = ((a & (b >> 2)) ^ (b & ((a ^ b) >> 2)));
+        C ^= ((a & (c >> 2)) ^ (b & (d >> 2)));
+        D ^= ((b & (c >> 2)) ^ ((a ^ b) & (d >> 2)));
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >> 4)) ^ (b & (b >> 4)));
+        B = ((a & (b >> 4)) ^ (b & ((a ^ b) >> 4)));
+        C ^= ((a & (c >> 4)) ^ (b & (d >> 4)));
+        D ^= ((b & (c >> 4)) ^ ((a ^ b) & (d >> 4)));
+
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >> 8)) ^ (b & (d >> 8)));
+        D ^= ((b & (c >> 8)) ^ ((a ^ b) & (d >> 8)));
+
+        a = C ^ (C >> 1);
+        b = D ^ (D >> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+    }
+}
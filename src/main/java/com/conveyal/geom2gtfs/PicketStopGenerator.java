@@ -1,5 +1,7 @@
 package com.conveyal.geom2gtfs;
 
+import java.util.List;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.opengis.feature.GeometryAttribute;
@@ -13,15 +15,20 @@ public class PicketStopGenerator implements StopGenerator {
 	private static final boolean FAIL_ON_MULTILINESTRING = true;
 
 	private JSONObject data;
+	
+	private FeatureRule<Integer> spacingRule;
 
 	public PicketStopGenerator(JSONObject data) {
 		this.data = data;
+		this.spacingRule = Config.compileSpacing(data);
 	}
 
 	private ProtoRoute makeProtoRouteStopsFromLinestring(LineString geom, double spacing) {
 		ProtoRoute ret = new ProtoRoute();
 
 		Coordinate[] coords = geom.getCoordinates();
+		double[] segLens = GeoMath.segmentLengths(coords);
+
 		double overshot = 0;
 		double segStartDist = 0;
 
@@ -31,7 +38,7 @@ public class PicketStopGenerator implements StopGenerator {
 			Coordinate p2 = coords[i + 1];
 
 			double segCurs = overshot;
-			double segLen = GeoMath.greatCircle(p1, p2);
+			double segLen = segLens[i];
 			totalLen += segLen;
 
 			while (segCurs < segLen) {
@@ -66,7 +73,7 @@ public class PicketStopGenerator implements StopGenerator {
 			throw new Exception("Features may only contain a single linestring.");
 		}
 		
-		double spacing = Config.getSpacing(exft, this.data);
+		double spacing = spacingRule.evaluate(exft);
 
 		LineString ls = (LineString) geom.getGeometryN(0);
 		ProtoRoute ret = this.makeProtoRouteStopsFromLinestring(ls, spacing);
@@ -74,4 +81,19 @@ public class PicketStopGenerator implements StopGenerator {
 		return ret;
 	}
 
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	/** Nothing to prepare; each route is generated independently */
+	@Override
+	public void prepare(List<List<ExtendedFeature>> groups, int threads) {
+	}
+
+	/** Nothing to forget; each route is generated independently */
+	@Override
+	public void reset() {
+	}
+
 }
@@ -0,0 +1,56 @@
+package com.conveyal.geom2gtfs;
+
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * The name of a feature property from the config. For simple features, such as those read from shapefiles, the
+ * name is looked up in the feature type once, so getting the property of each feature is an array access rather
+ * than a search by name.
+ */
+public class PropertyRef {
+
+	/** the name of the property, or null if the config doesn't name one, in which case no feature has it */
+	public final String name;
+
+	/** the feature type the name was last looked up in, and where it was found; replaced together */
+	private volatile Resolved resolved;
+
+	private static class Resolved {
+		final SimpleFeatureType type;
+		final int index;
+
+		Resolved(SimpleFeatureType type, int index) {
+			this.type = type;
+			this.index = index;
+		}
+	}
+
+	public PropertyRef(String name) {
+		this.name = name;
+	}
+
+	/** @return the value of this property of the feature, or null if it has no such property */
+	public Object getValue(Feature feat) {
+		if (name == null)
+			return null;
+
+		if (feat instanceof SimpleFeature) {
+			SimpleFeature simple = (SimpleFeature) feat;
+			SimpleFeatureType type = simple.getFeatureType();
+
+			Resolved r = resolved;
+			if (r == null || r.type != type) {
+				r = new Resolved(type, type.indexOf(name));
+				resolved = r;
+			}
+
+			return r.index >= 0 ? simple.getAttribute(r.index) : null;
+		}
+
+		Property prop = feat.getProperty(name);
+		return prop != null ? prop.getValue() : null;
+	}
+}
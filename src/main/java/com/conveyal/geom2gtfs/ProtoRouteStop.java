@@ -10,16 +10,26 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ProtoRouteStop {
         // TODO: this is kind of hacky, we should really be using a separate ID space for each feed.
         private static AtomicInteger createdStopId = new AtomicInteger();
+        
+        private static final String PROVISIONAL_ID_PREFIX = "provisional_";
     
         public ProtoRouteStop (Coordinate coord, double dist) {
             this.coord = coord;
             this.dist = dist;
-            this.stop = new Stop();
-            stop.setLat(coord.y);
-            stop.setLon(coord.x);
+            this.stop = provisionalStop(coord.y, coord.x);
+        }
+        
+        /**
+         * Make a new stop with a provisional id. Created stops get their real id and name when their route is
+         * appended to the GtfsQueue, so that they don't depend on the order in which routes were generated.
+         */
+        public static Stop provisionalStop (double lat, double lon) {
+            Stop stop = new Stop();
+            stop.setLat(lat);
+            stop.setLon(lon);
             int stopId = createdStopId.incrementAndGet();
-            stop.setName("Stop " + stopId);
-            stop.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, "created_stop_" + stopId));
+            stop.setId(new AgencyAndId(Main.DEFAULT_AGENCY_ID, PROVISIONAL_ID_PREFIX + stopId));
+            return stop;
         }
         
         public ProtoRouteStop (Stop stop, double dist) {
@@ -28,6 +38,11 @@ public class ProtoRouteStop {
             this.dist = dist;
         }
     
+        /** Was this stop created by a ProtoRouteStop, and not yet given its final id? */
+        public static boolean isProvisional (Stop stop) {
+            return stop.getId().getId().startsWith(PROVISIONAL_ID_PREFIX);
+        }
+    
 	public Coordinate coord;
 	public double dist;
 	public Stop stop;
@@ -0,0 +1,257 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Timings, counts and memory use for each phase of a run, so that slow or memory-hungry runs can be diagnosed
+ * from a report rather than by attaching a profiler.
+ *
+ * A phase is timed by calling begin() and then end() with the name of the phase. A phase can be timed many
+ * times, for instance once per route, and from several threads at once; its time is the sum of them all, so
+ * the time of a phase that runs on several threads can be longer than the run itself. A phase that a single
+ * thread times once for each of many items can be timed through a Tally instead, which sums the timings and adds
+ * them to the report when it is flushed.
+ *
+ * Heap use is sampled whenever a phase ends, a tally is flushed and progress is printed. The high water mark of a phase
+ * is the most heap that was in use at the end of any of its timings, which includes garbage that has not yet
+ * been collected.
+ */
+public class RunReport {
+
+	private final long started = System.nanoTime();
+
+	private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	private final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+
+	private final AtomicLong heapHighWater = new AtomicLong();
+
+	private ScheduledExecutorService progress;
+
+	private static class Phase {
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong timings = new AtomicLong();
+		final AtomicLong heapHighWater = new AtomicLong();
+	}
+
+	/** @return the time to pass to end() */
+	public long begin() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record that a phase that started at began has finished.
+	 * @return the time it finished, so that the next phase can begin where this one ended.
+	 */
+	public long end(String phaseName, long began) {
+		long now = System.nanoTime();
+		Phase phase = phase(phaseName);
+		phase.nanos.addAndGet(now - began);
+		phase.timings.incrementAndGet();
+		max(phase.heapHighWater, sampleHeap());
+		return now;
+	}
+
+	/** @return a tally of the timings of a phase, for one thread to time it many times over */
+	public Tally tally(String phaseName) {
+		return new Tally(phase(phaseName));
+	}
+
+	/**
+	 * The timings of a phase by one thread, summed until flush() adds them to the report. Timing with end() takes
+	 * a lock and samples the heap each time, which adds up when a phase is timed for each of millions of features.
+	 */
+	public class Tally {
+		private final Phase phase;
+		private long nanos = 0;
+		private long timings = 0;
+
+		private Tally(Phase phase) {
+			this.phase = phase;
+		}
+
+		/**
+		 * Record that the phase, which started at began, has finished.
+		 * @return the time it finished, so that the next phase can begin where this one ended.
+		 */
+		public long end(long began) {
+			long now = System.nanoTime();
+			nanos += now - began;
+			timings++;
+			return now;
+		}
+
+		/** Add the timings since the last flush to the report */
+		public void flush() {
+			phase.nanos.addAndGet(nanos);
+			phase.timings.addAndGet(timings);
+			max(phase.heapHighWater, sampleHeap());
+			nanos = 0;
+			timings = 0;
+		}
+	}
+
+	/** Add n to a counter */
+	public void count(String counter, long n) {
+		counter(counter).addAndGet(n);
+	}
+
+	/** Print a line of progress every interval seconds until finish() is called */
+	public void startProgress(int interval) {
+		if (interval <= 0)
+			return;
+
+		progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		progress.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println( progressLine() );
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/** Stop printing progress */
+	public void finish() {
+		if (progress != null) {
+			progress.shutdownNow();
+			progress = null;
+		}
+		sampleHeap();
+	}
+
+	String progressLine() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("progress: ").append(millis(System.nanoTime() - started) / 1000).append("s");
+
+		synchronized (counters) {
+			for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+				sb.append(", ").append(counter.getKey()).append(" ").append(counter.getValue().get());
+			}
+		}
+
+		sb.append(", heap ").append(sampleHeap() / (1024 * 1024)).append("MB");
+		return sb.toString();
+	}
+
+	public JSONObject toJSON() {
+		JSONObject ret = new JSONObject();
+		ret.put("elapsed_ms", millis(System.nanoTime() - started));
+
+		JSONArray jPhases = new JSONArray();
+		synchronized (phases) {
+			for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+				Phase phase = entry.getValue();
+				JSONObject jPhase = new JSONObject();
+				jPhase.put("name", entry.getKey());
+				jPhase.put("ms", millis(phase.nanos.get()));
+				jPhase.put("timings", phase.timings.get());
+				jPhase.put("heap_high_water_bytes", phase.heapHighWater.get());
+				jPhases.put(jPhase);
+			}
+		}
+		ret.put("phases", jPhases);
+
+		JSONObject jCounters = new JSONObject();
+		synchronized (counters) {
+			for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+				jCounters.put(counter.getKey(), counter.getValue().get());
+			}
+		}
+		ret.put("counters", jCounters);
+
+		JSONObject jHeap = new JSONObject();
+		jHeap.put("high_water_bytes", heapHighWater.get());
+		jHeap.put("max_bytes", Runtime.getRuntime().maxMemory());
+
+		// the JVM tracks the peak of each heap pool exactly, but the pools don't all peak at the same time
+		JSONObject jPools = new JSONObject();
+		for (MemoryPoolMXBean pool : heapPools()) {
+			jPools.put(pool.getName(), pool.getPeakUsage().getUsed());
+		}
+		jHeap.put("pool_peak_bytes", jPools);
+		ret.put("heap", jHeap);
+
+		return ret;
+	}
+
+	public void write(File file) throws IOException {
+		Files.write(file.toPath(), toJSON().toString(2).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Phase phase(String name) {
+		synchronized (phases) {
+			Phase phase = phases.get(name);
+			if (phase == null) {
+				phase = new Phase();
+				phases.put(name, phase);
+			}
+			return phase;
+		}
+	}
+
+	private AtomicLong counter(String name) {
+		synchronized (counters) {
+			AtomicLong counter = counters.get(name);
+			if (counter == null) {
+				counter = new AtomicLong();
+				counters.put(name, counter);
+			}
+			return counter;
+		}
+	}
+
+	/** @return the number of bytes of heap in use */
+	private long sampleHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		max(heapHighWater, used);
+		return used;
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> ret = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				ret.add(pool);
+			}
+		}
+		return ret;
+	}
+
+	private static void max(AtomicLong value, long candidate) {
+		long current;
+		while ((current = value.get()) < candidate) {
+			if (value.compareAndSet(current, candidate))
+				return;
+		}
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -5,6 +5,7 @@ public class ServiceWindow {
 	private int start;
 	private int end;
 	public String propName;
+	public PropertyRef property;
 	public int startSecs() {
 		return start*3600;
 	}
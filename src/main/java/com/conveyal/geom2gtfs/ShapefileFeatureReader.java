@@ -0,0 +1,162 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Reads the features of a shapefile one at a time, reprojecting them to WGS84 as they are read, so that callers
+ * only need to hold on to the features they keep.
+ *
+ * Features are read in batches, and the features in each batch are reprojected in parallel. Each feature is
+ * reprojected independently, so the result is the same as reprojecting them one after another.
+ */
+public class ShapefileFeatureReader implements Iterator<SimpleFeature>, Closeable {
+
+	private static final int BATCH_SIZE = 4096;
+
+	/** batches are split until pieces are this small, and the pieces are reprojected in parallel */
+	private static final int MIN_TASK_SIZE = 64;
+
+	private DataStore dataStore;
+	private SimpleFeatureIterator iterator;
+
+	/** the CRS of the shapefile, or null if the shapefile is already in WGS84 */
+	private CoordinateReferenceSystem sourceCRS;
+
+	/**
+	 * transforms to WGS84, shared by all the threads reprojecting a batch. GeoTools math transforms are immutable
+	 * and safe to use from several threads at once; CRS.findMathTransform hands out cached instances, so looking one
+	 * up per thread would not give each thread its own anyway.
+	 */
+	private MathTransform transform;
+
+	private List<SimpleFeature> batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+	private int batchPos = 0;
+
+	public ShapefileFeatureReader(String shp_filename) throws IOException {
+		// construct shapefile factory
+		File file = new File(shp_filename);
+		Map<String, URL> map = new HashMap<String, URL>();
+		map.put("url", file.toURI().toURL());
+		dataStore = DataStoreFinder.getDataStore(map);
+
+		// get shapefile as generic 'feature source'
+		SimpleFeatureSource featureSource = dataStore.getFeatureSource(dataStore.getTypeNames()[0]);
+
+		CoordinateReferenceSystem shpCRS = featureSource.getSchema().getCoordinateReferenceSystem();
+
+		if (shpCRS != null && !shpCRS.equals(DefaultGeographicCRS.WGS84)) {
+			sourceCRS = shpCRS;
+			
+			// fail early if there is no transform, rather than on the first batch
+			try {
+				transform = CRS.findMathTransform(sourceCRS, DefaultGeographicCRS.WGS84, true);
+			} catch (Exception e) {
+				dataStore.dispose();
+				throw new RuntimeException(e);
+			}
+		}
+
+		iterator = featureSource.getFeatures().features();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return batchPos < batch.size() || iterator.hasNext();
+	}
+
+	@Override
+	public SimpleFeature next() {
+		if (batchPos == batch.size()) {
+			readBatch();
+		}
+
+		if (batchPos == batch.size()) {
+			throw new NoSuchElementException();
+		}
+
+		// don't hold on to features once they have been handed out
+		return batch.set(batchPos++, null);
+	}
+
+	/** Read the next batch of features and reproject them. */
+	private void readBatch() {
+		batch.clear();
+		batchPos = 0;
+
+		while (batch.size() < BATCH_SIZE && iterator.hasNext()) {
+			batch.add(iterator.next());
+		}
+
+		if (sourceCRS != null) {
+			ForkJoinPool.commonPool().invoke(new ReprojectTask(0, batch.size()));
+		}
+	}
+
+	/** Reproject a range of the current batch, splitting it in half until it is small enough. */
+	private class ReprojectTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int start;
+		private int end;
+
+		public ReprojectTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > MIN_TASK_SIZE) {
+				int mid = (start + end) / 2;
+				invokeAll(new ReprojectTask(start, mid), new ReprojectTask(mid, end));
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				SimpleFeature feature = batch.get(i);
+				try {
+					Geometry geom = (Geometry) feature.getDefaultGeometry();
+					feature.setDefaultGeometry(JTS.transform(geom, transform));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		iterator.close();
+		dataStore.dispose();
+	}
+
+}
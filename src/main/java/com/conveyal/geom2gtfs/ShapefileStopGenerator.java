@@ -20,6 +20,9 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.linearref.LinearLocation;
 import com.vividsolutions.jts.linearref.LocationIndexedLine;
 
@@ -30,14 +33,36 @@ public class ShapefileStopGenerator implements StopGenerator {
 	double threshold;
 	List<Feature> stops;
 	
-	GeodeticCalculator gc = new GeodeticCalculator(DefaultEllipsoid.WGS84);
+	/** spatial index of the indices of stops in the stops list */
+	STRtree stopIndex;
+	
+	// GeodeticCalculator is stateful, so each thread gets its own
+	ThreadLocal<GeodeticCalculator> gc = new ThreadLocal<GeodeticCalculator>() {
+		@Override
+		protected GeodeticCalculator initialValue() {
+			return new GeodeticCalculator(DefaultEllipsoid.WGS84);
+		}
+	};
 
 	public ShapefileStopGenerator(JSONObject data) throws MalformedURLException, IOException {
-		String filename = data.getString("filename");
-		threshold = data.getDouble("threshold");
-		
 		// collect all features from shapefile
-		stops = Main.getFeatures(filename);		
+		this(Main.getFeatures(data.getString("filename")), data.getDouble("threshold"));
+	}
+
+	/**
+	 * Make a stop generator from stop features that have already been loaded.
+	 * @param threshold how far from a route stops may be, in the units of the stop geometries.
+	 */
+	ShapefileStopGenerator(List<Feature> stops, double threshold) {
+		this.stops = stops;
+		this.threshold = threshold;
+		
+		stopIndex = new STRtree();
+		for (int i = 0; i < stops.size(); i++) {
+			Geometry stopGeom = (Geometry) stops.get(i).getDefaultGeometryProperty().getValue();
+			stopIndex.insert(stopGeom.getEnvelopeInternal(), i);
+		}
+		stopIndex.build();
 	}
 
 	@Override
@@ -62,21 +87,36 @@ public class ShapefileStopGenerator implements StopGenerator {
 		// create buffer of linestring
 		Geometry buffer = ls.buffer( threshold ); // note distance is in same units as geoemtry
 		
-		// get all features in stop shapefile that fall within buffer
+		// get all features in stop shapefile that fall within buffer. The index only returns candidates whose
+		// envelope intersects the buffer's; sort them so stops are considered in the order of the shapefile.
+		@SuppressWarnings("unchecked")
+		List<Integer> candidates = stopIndex.query(buffer.getEnvelopeInternal());
+		Collections.sort(candidates);
+		
+		PreparedGeometry preparedBuffer = PreparedGeometryFactory.prepare(buffer);
 		List<Feature> nearbyStops = new ArrayList<Feature>();
-		for(Feature stop : stops){
+		for(int candidate : candidates){
+			Feature stop = stops.get(candidate);
 			Geometry stopGeom = (Geometry)stop.getDefaultGeometryProperty().getValue();
-			if(stopGeom.within(buffer)){
+			if(preparedBuffer.contains(stopGeom)){
 				nearbyStops.add(stop);
 			}
 		}
 		
+		// segment lengths are computed once per linestring and shared by all the stops on it
+		double[] segLengths = new double[ls.getNumPoints() - 1];
+		double[] cumulativeLengths = new double[ls.getNumPoints()];
+		for(int i=0; i<segLengths.length; i++){
+			segLengths[i] = getSegLength( ls.getCoordinateN(i), ls.getCoordinateN(i + 1) );
+			cumulativeLengths[i + 1] = cumulativeLengths[i] + segLengths[i];
+		}
+		
 		// for each feature, reference along the the linestring
 		List<ProtoRouteStop> prss = new ArrayList<ProtoRouteStop>();
 		for(Feature feature : nearbyStops ){
 			Geometry geom = (Geometry) feature.getDefaultGeometryProperty().getValue();
 			LinearLocation ix = ils.project(geom.getCoordinate());
-			ProtoRouteStop prs = generateProtoRouteStop( ls, ix );
+			ProtoRouteStop prs = generateProtoRouteStop( ls, ix, segLengths, cumulativeLengths );
 			prss.add(prs);
 		}
 		
@@ -106,47 +146,58 @@ public class ShapefileStopGenerator implements StopGenerator {
 			}
 		}
 		
-		ret.length = distAlongLineString( ls, ils.getEndIndex() );
+		ret.length = distAlongLineString( ils.getEndIndex(), segLengths, cumulativeLengths );
 		
 		return ret;
 	}
 
-	private ProtoRouteStop generateProtoRouteStop(LineString ls, LinearLocation ix) {
-		double dist = distAlongLineString( ls, ix );
+	private ProtoRouteStop generateProtoRouteStop(LineString ls, LinearLocation ix, double[] segLengths,
+			double[] cumulativeLengths) {
+		double dist = distAlongLineString( ix, segLengths, cumulativeLengths );
 		
 		ProtoRouteStop prs = new ProtoRouteStop(ix.getCoordinate(ls), dist);
 		
 		return prs;
 	}
 
-	private double distAlongLineString(LineString ls, LinearLocation ix) {
-		double dist=0;
-		
+	/**
+	 * Get the distance along a linestring to a location on it.
+	 * @param segLengths the length of each segment of the linestring
+	 * @param cumulativeLengths the distance along the linestring to each of its vertices
+	 */
+	private static double distAlongLineString(LinearLocation ix, double[] segLengths, double[] cumulativeLengths) {
 		int seg = ix.getSegmentIndex();
 		
-		double segDist=0;
-		for(int i=0; i<seg; i++){
-			Coordinate segStart = ls.getCoordinateN(i);
-			Coordinate segEnd = ls.getCoordinateN(i + 1);
-			segDist = getSegLength( segStart, segEnd );
-			dist += segDist;
-		}
+		double dist = cumulativeLengths[seg];
 
-		if (seg < ls.getNumPoints() - 1) {
-			Coordinate segStart = ls.getCoordinateN(seg);
-			Coordinate segEnd = ls.getCoordinateN(seg + 1);
-			segDist = getSegLength(segStart, segEnd);
+		if (seg < segLengths.length) {
 			double segFraction = ix.getSegmentFraction();
-			dist += segFraction * segDist;
+			dist += segFraction * segLengths[seg];
 		}
 		
 		return dist;
 	}
 
 	private double getSegLength(Coordinate segStart, Coordinate segEnd) {
+		GeodeticCalculator gc = this.gc.get();
 		gc.setStartingGeographicPoint(segStart.x,segStart.y);
 		gc.setDestinationGeographicPoint(segEnd.x,segEnd.y);
 		return gc.getOrthodromicDistance();
 	}
 
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	/** Nothing to prepare; each route is generated independently */
+	@Override
+	public void prepare(List<List<ExtendedFeature>> groups, int threads) {
+	}
+
+	/** Nothing to forget; each route is generated independently */
+	@Override
+	public void reset() {
+	}
+
 }
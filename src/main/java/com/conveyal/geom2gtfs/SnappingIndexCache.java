@@ -0,0 +1,225 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+/**
+ * The snapping indices the cluster stop generator builds from its OSM and GTFS inputs, saved to a file so that
+ * later runs against the same inputs can map the file instead of parsing the inputs again.
+ *
+ * The cache is keyed by the path, size and modification time of every input file; if any of them change, or
+ * the cache was written by a different version of this class, it is ignored and rebuilt.
+ */
+public class SnappingIndexCache {
+    private static final int MAGIC = 0x67326763; // "g2gc"
+    private static final int VERSION = 2;
+
+    public PackedWayIndex wayIndex;
+
+    /** stops loaded from GTFS feeds, with ids already prefixed by the index of their feed */
+    public List<Stop> stops;
+
+    public SnappingIndexCache(PackedWayIndex wayIndex, List<Stop> stops) {
+        this.wayIndex = wayIndex;
+        this.stops = stops;
+    }
+
+    /**
+     * Make a key describing the input files of a cluster stop generator. A cache is only used if it was written
+     * with the same key.
+     */
+    public static String key(JSONObject stopGeneratorData) {
+        StringBuilder key = new StringBuilder();
+        for (String prop : new String[] { "osmfiles", "gtfsfiles" }) {
+            key.append(prop).append(':');
+            if (stopGeneratorData.has(prop)) {
+                JSONArray files = stopGeneratorData.getJSONArray(prop);
+                for (int i = 0; i < files.length(); i++) {
+                    File file = new File(files.getString(i));
+                    key.append(file.getAbsolutePath()).append('|')
+                        .append(file.length()).append('|')
+                        .append(file.lastModified()).append(';');
+                }
+            }
+            key.append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Read a cache file.
+     * @return the cached indices, or null if the file doesn't exist or was written for different inputs.
+     */
+    public static SnappingIndexCache read(File file, String key) throws IOException {
+        if (!file.exists())
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.err.println("Index cache " + file + " is too large to map, rebuilding indices");
+                return null;
+            }
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION || !key.equals(readString(buf)))
+                return null;
+
+            PackedWayIndex wayIndex = PackedWayIndex.read(buf);
+
+            int stopCount = buf.getInt();
+            List<Stop> stops = new ArrayList<Stop>(stopCount);
+            for (int i = 0; i < stopCount; i++) {
+                stops.add(readStop(buf));
+            }
+
+            return new SnappingIndexCache(wayIndex, stops);
+        } catch (BufferUnderflowException e) {
+            System.err.println("Index cache " + file + " is truncated, rebuilding indices");
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void write(File file, String key) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, key);
+
+            wayIndex.write(out);
+
+            out.writeInt(stops.size());
+            for (Stop stop : stops) {
+                writeStop(out, stop);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write every field of a stop that GtfsReader reads and the output writes, so that a stop read back comes out
+     * the same as the stop that was loaded. The parent station is not kept: stations aren't loaded for snapping,
+     * so it would refer to a stop that isn't in the output.
+     */
+    static void writeStop(DataOutputStream out, Stop stop) throws IOException {
+        writeString(out, stop.getId().getAgencyId());
+        writeString(out, stop.getId().getId());
+        writeString(out, stop.getCode());
+        writeString(out, stop.getName());
+        writeString(out, stop.getDesc());
+        out.writeDouble(stop.getLat());
+        out.writeDouble(stop.getLon());
+        writeString(out, stop.getZoneId());
+        writeString(out, stop.getUrl());
+        out.writeInt(stop.getLocationType());
+        out.writeInt(stop.getWheelchairBoarding());
+        writeString(out, stop.getDirection());
+        writeString(out, stop.getTimezone());
+        out.writeInt(stop.getVehicleType());
+        writeString(out, stop.getPlatformCode());
+    }
+
+    static Stop readStop(ByteBuffer buf) {
+        Stop stop = new Stop();
+        stop.setId(new AgencyAndId(readString(buf), readString(buf)));
+        stop.setCode(readString(buf));
+        stop.setName(readString(buf));
+        stop.setDesc(readString(buf));
+        stop.setLat(buf.getDouble());
+        stop.setLon(buf.getDouble());
+        stop.setZoneId(readString(buf));
+        stop.setUrl(readString(buf));
+        stop.setLocationType(buf.getInt());
+        stop.setWheelchairBoarding(buf.getInt());
+        stop.setDirection(readString(buf));
+        stop.setTimezone(readString(buf));
+        stop.setVehicleType(buf.getInt());
+        stop.setPlatformCode(readString(buf));
+        return stop;
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(ByteBuffer buf) {
+        double[] ret = new double[buf.getInt()];
+        buf.asDoubleBuffer().get(ret);
+        buf.position(buf.position() + ret.length * 8);
+        return ret;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer buf) {
+        int[] ret = new int[buf.getInt()];
+        buf.asIntBuffer().get(ret);
+        buf.position(buf.position() + ret.length * 4);
+        return ret;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    static long[] readLongs(ByteBuffer buf) {
+        long[] ret = new long[buf.getInt()];
+        buf.asLongBuffer().get(ret);
+        buf.position(buf.position() + ret.length * 8);
+        return ret;
+    }
+}
@@ -1,7 +1,25 @@
 package com.conveyal.geom2gtfs;
 
+import java.util.List;
+
 public interface StopGenerator {
 
 	ProtoRoute makeProtoRoute(ExtendedFeature exft, Double speed) throws Exception;
 	
+	/**
+	 * Called before any route is generated, with the features of every route that will be generated, in the order
+	 * the routes will be appended to the output. A generator can use this to place stops for all routes at once.
+	 * @param threads the number of threads the generator may use
+	 */
+	void prepare(List<List<ExtendedFeature>> groups, int threads) throws Exception;
+	
+	/** Can makeProtoRoute be called from several threads at once? */
+	boolean isThreadSafe();
+	
+	/**
+	 * Forget anything learned from the routes generated so far, so that the generator can be reused for another
+	 * feed, which will come out the same as it would from a new generator.
+	 */
+	void reset();
+	
 }
@@ -0,0 +1,65 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Keeps stop generators, and the indices they have loaded, between runs in the same JVM. A generator is reused
+ * by any run whose config has the same stop settings, as long as the files it was loaded from haven't changed.
+ *
+ * Only a few generators are kept, since the cluster generator can hold the streets and stops of a whole region.
+ */
+public class StopGeneratorCache {
+	private static final int MAX_SIZE = 4;
+
+	/** generators by key, least recently used first */
+	private Map<String, StopGenerator> generators = new LinkedHashMap<String, StopGenerator>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StopGenerator> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	/**
+	 * Get a stop generator for the stop settings of a config, reset so that it generates stops as a new one would.
+	 * @return the generator, or null if the config has no stop settings.
+	 */
+	public synchronized StopGenerator get(Config config) throws IOException {
+		JSONObject stops = config.data.optJSONObject("stops");
+		if (stops == null)
+			return null;
+
+		String key = key(stops);
+		StopGenerator generator = generators.get(key);
+		if (generator == null) {
+			generator = config.getStopGenerator();
+			generators.put(key, generator);
+		} else {
+			System.out.println( "reusing stop generator" );
+			generator.reset();
+		}
+		return generator;
+	}
+
+	/** The stop settings, and the size and modification time of each file they refer to */
+	private static String key(JSONObject stops) {
+		StringBuilder key = new StringBuilder(IncrementalState.canonicalJson(stops));
+		key.append('\n');
+
+		if (stops.has("filename")) {
+			File file = new File(stops.getString("filename"));
+			key.append(file.getAbsolutePath()).append('|')
+				.append(file.length()).append('|')
+				.append(file.lastModified()).append('\n');
+		}
+
+		key.append(SnappingIndexCache.key(stops));
+		return key.toString();
+	}
+}
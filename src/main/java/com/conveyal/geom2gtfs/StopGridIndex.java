@@ -0,0 +1,273 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.onebusaway.gtfs.model.Stop;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An index of stops on a grid of cells a fixed number of degrees across, which stops can be added to at any time,
+ * and which finds the stops near a point nearest first.
+ *
+ * The index is thread safe. Cells are guarded by a fixed set of locks, each shared by many cells, so threads
+ * working in different parts of the grid rarely wait for each other. findOrCreate() holds the locks of all the
+ * cells it searches until it has added any stop it creates, so two threads looking for a stop at the same spot
+ * can't both create one.
+ *
+ * Stops are numbered in the order they are added, and stops at the same distance from a point come out in that
+ * order.
+ */
+public class StopGridIndex {
+    /** the size of a cell in degrees; about a kilometer north to south, or a few stop spacings */
+    public static final double DEFAULT_CELL_SIZE = 0.01;
+
+    /** the number of locks; a power of two */
+    private static final int STRIPES = 64;
+
+    private final double cellSize;
+
+    private final ConcurrentMap<Long, Cell> cells = new ConcurrentHashMap<Long, Cell>();
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /** the number of the next stop added */
+    private final AtomicInteger nextStop = new AtomicInteger();
+
+    /** the stops in a cell, in the order they were added; only read or written holding the cell's lock */
+    private static class Cell {
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        Stop[] stops = new Stop[4];
+        int[] numbers = new int[4];
+        int size = 0;
+
+        void add(double x, double y, Stop stop, int number) {
+            if (size == stops.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+                stops = Arrays.copyOf(stops, size * 2);
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            stops[size] = stop;
+            numbers[size] = number;
+            size++;
+        }
+    }
+
+    /** What to do at a point in findOrCreate */
+    public static abstract class FindOrCreate {
+        /** @return true if the stop, one of those near the point, can be used */
+        public abstract boolean accept(Stop stop);
+
+        /**
+         * Make a stop, when none of the stops near the point can be used. This may be called more than once in a
+         * single findOrCreate, if the stop it makes is in a cell whose lock another thread holds.
+         * @return the new stop, or null to add no stop
+         */
+        public abstract Stop create();
+    }
+
+    public StopGridIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public StopGridIndex(double cellSize) {
+        this.cellSize = cellSize;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /** Add a stop at (x, y), in degrees. */
+    public void insert(double x, double y, Stop stop) {
+        ReentrantLock lock = locks[stripe(cell(x), cell(y))];
+        lock.lock();
+        try {
+            add(x, y, stop);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** the number of stops in the index */
+    public int size() {
+        return nextStop.get();
+    }
+
+    /** Add a stop, holding the lock of its cell */
+    private void add(double x, double y, Stop stop) {
+        Long key = key(cell(x), cell(y));
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(x, y, stop, nextStop.getAndIncrement());
+    }
+
+    /**
+     * Find the nearest stop within the envelope and within maxDistance meters of (x, y), in degrees, that op
+     * accepts, or if there is none, add the stop op creates. Distances are those of GeoMath.haversine. No other
+     * stop is added to the cells the envelope covers while this runs.
+     * @return the stop found or created, or null if none was found and op created none
+     */
+    public Stop findOrCreate(Envelope env, double x, double y, double maxDistance, FindOrCreate op) {
+        boolean[] held = new boolean[STRIPES];
+        int minCx = cell(env.getMinX()), maxCx = cell(env.getMaxX());
+        int minCy = cell(env.getMinY()), maxCy = cell(env.getMaxY());
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cy = minCy; cy <= maxCy; cy++) {
+                held[stripe(cx, cy)] = true;
+            }
+        }
+
+        while (true) {
+            // take the locks in order, so that threads can't deadlock
+            for (int i = 0; i < STRIPES; i++) {
+                if (held[i])
+                    locks[i].lock();
+            }
+
+            try {
+                NearestSearch search = new NearestSearch(env, x, y, maxDistance);
+                Stop stop;
+                while ((stop = search.next()) != null) {
+                    if (op.accept(stop))
+                        return stop;
+                }
+
+                stop = op.create();
+                if (stop == null)
+                    return null;
+
+                // the new stop may be outside the envelope, in a cell whose lock isn't held. Taking it out of order
+                // could deadlock, so if another thread has it, start again holding it as well.
+                int stripe = stripe(cell(stop.getLon()), cell(stop.getLat()));
+                if (!held[stripe]) {
+                    if (!locks[stripe].tryLock()) {
+                        held[stripe] = true;
+                        continue;
+                    }
+                    try {
+                        add(stop.getLon(), stop.getLat(), stop);
+                    } finally {
+                        locks[stripe].unlock();
+                    }
+                    return stop;
+                }
+
+                add(stop.getLon(), stop.getLat(), stop);
+                return stop;
+            } finally {
+                for (int i = STRIPES - 1; i >= 0; i--) {
+                    if (held[i] && locks[i].isHeldByCurrentThread())
+                        locks[i].unlock();
+                }
+            }
+        }
+    }
+
+    private int cell(double coord) {
+        return (int) Math.floor(coord / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private static int stripe(int cx, int cy) {
+        int h = cx * 31 + cy;
+        h ^= h >>> 16;
+        return h & (STRIPES - 1);
+    }
+
+    /**
+     * A best-first search: cells are only opened once nothing in the cells already opened could be nearer, so
+     * finding the nearest few stops only measures the distances to the stops in a few cells. The locks of the
+     * cells must be held while it runs.
+     */
+    private class NearestSearch {
+        private final Envelope env;
+        private final double x, y, cosX;
+        private final double maxDistance;
+
+        /** cells are in the queue as -1 - their position in this list, stops as their position in found */
+        private final List<Cell> openable = new ArrayList<Cell>();
+        private final List<Stop> found = new ArrayList<Stop>();
+        private final BestFirstQueue queue = new BestFirstQueue();
+
+        private NearestSearch(Envelope env, double xDeg, double yDeg, double maxDistance) {
+            this.env = env;
+            this.x = Math.toRadians(xDeg);
+            this.y = Math.toRadians(yDeg);
+            this.cosX = Math.cos(x);
+            this.maxDistance = maxDistance;
+
+            int minCx = cell(env.getMinX()), maxCx = cell(env.getMaxX());
+            int minCy = cell(env.getMinY()), maxCy = cell(env.getMaxY());
+            for (int cx = minCx; cx <= maxCx; cx++) {
+                for (int cy = minCy; cy <= maxCy; cy++) {
+                    Cell cell = cells.get(key(cx, cy));
+                    if (cell == null)
+                        continue;
+
+                    // only the part of the cell inside the envelope can hold results
+                    double bound = GeoMath.lowerBoundDistance(x, y, cosX,
+                            Math.toRadians(Math.max(cx * cellSize, env.getMinX())),
+                            Math.toRadians(Math.max(cy * cellSize, env.getMinY())),
+                            Math.toRadians(Math.min((cx + 1) * cellSize, env.getMaxX())),
+                            Math.toRadians(Math.min((cy + 1) * cellSize, env.getMaxY())));
+                    if (bound > maxDistance)
+                        continue;
+
+                    // cells come before stops at the same distance, so that all the stops at a distance are
+                    // queued before any of them is returned
+                    queue.add(bound, Long.MIN_VALUE, -1 - openable.size());
+                    openable.add(cell);
+                }
+            }
+        }
+
+        /** @return the next nearest stop, or null if there are no more */
+        public Stop next() {
+            while (!queue.isEmpty()) {
+                int value = queue.poll();
+                if (value >= 0)
+                    return found.get(value);
+
+                open(openable.get(-1 - value));
+            }
+            return null;
+        }
+
+        private void open(Cell cell) {
+            for (int i = 0; i < cell.size; i++) {
+                if (!env.contains(cell.xs[i], cell.ys[i]))
+                    continue;
+
+                double stopX = Math.toRadians(cell.xs[i]);
+                double stopY = Math.toRadians(cell.ys[i]);
+
+                // most of the stops in a cell are further than the limit, which the approximation can tell
+                // without the haversine formula
+                if (GeoMath.fastFurtherThan(stopX, stopY, x, y, maxDistance))
+                    continue;
+
+                double dist = GeoMath.haversine(stopX, stopY, Math.cos(stopX), x, y, cosX);
+                if (dist <= maxDistance) {
+                    queue.add(dist, cell.numbers[i], found.size());
+                    found.add(cell.stops[i]);
+                }
+            }
+        }
+    }
+}
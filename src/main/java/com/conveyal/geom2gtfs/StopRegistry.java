@@ -0,0 +1,58 @@
+package com.conveyal.geom2gtfs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+/**
+ * The set of stops in a feed, keyed by stop id. Stops are kept in the order they were added until they are
+ * written out; after that only their ids are remembered, so that stops shared between routes are only
+ * written once.
+ */
+public class StopRegistry implements Iterable<Stop> {
+
+	/** ids of every stop that has been added, including those that have since been written */
+	private Set<AgencyAndId> ids = new HashSet<AgencyAndId>();
+
+	/** stops that have not been written yet, in the order they were added */
+	private List<Stop> pending = new ArrayList<Stop>();
+
+	/**
+	 * Add a stop if it is not already present.
+	 * @return true if the stop is new, false if a stop with the same id was already added.
+	 */
+	public boolean add(Stop stop) {
+		if (!ids.add(stop.getId())) {
+			return false;
+		}
+
+		pending.add(stop);
+		return true;
+	}
+
+	public boolean contains(Stop stop) {
+		return ids.contains(stop.getId());
+	}
+
+	/** The number of stops that have not been written yet */
+	public int size() {
+		return pending.size();
+	}
+
+	/** Iterate over the stops that have not been written yet, in the order they were added */
+	@Override
+	public Iterator<Stop> iterator() {
+		return pending.iterator();
+	}
+
+	/** Forget the stops that have been written, but keep their ids so they are not added again */
+	public void markWritten() {
+		pending.clear();
+	}
+
+}
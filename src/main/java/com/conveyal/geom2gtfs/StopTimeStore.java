@@ -0,0 +1,227 @@
+package com.conveyal.geom2gtfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * Stores stop times without creating a StopTime object for each of them. In exact mode there is a stop time
+ * for every stop of every trip, so this is by far the largest table in the feed.
+ *
+ * All the trips in one direction of a route visit the same stops with the same travel times, so the travel
+ * times are stored once per route direction as a pattern of offsets from the start of the trip, and each trip
+ * is stored as a pattern and a start time. Stop times are only expanded when they are written.
+ *
+ * Stops are referred to by their index in a per-store table, so this doesn't depend on trips or stops having
+ * their final ids yet.
+ */
+public class StopTimeStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private List<Stop> stops = new ArrayList<Stop>();
+	private Map<Stop, Integer> stopIndices = new IdentityHashMap<Stop, Integer>();
+
+	/** pattern p occupies positions patternStart[p] up to patternStart[p + 1] of patternStop and patternOffset */
+	private int[] patternStart = new int[INITIAL_CAPACITY];
+	private int patternCount = 0;
+
+	private int[] patternStop = new int[INITIAL_CAPACITY];
+	private int[] patternOffset = new int[INITIAL_CAPACITY];
+	private int patternLength = 0;
+
+	private List<Trip> trips = new ArrayList<Trip>();
+	private int[] tripPattern = new int[INITIAL_CAPACITY];
+	private int[] tripStart = new int[INITIAL_CAPACITY];
+
+	/** the number of stop times stored */
+	private int size = 0;
+
+	/**
+	 * Add a pattern of stops and offsets shared by several trips.
+	 * @return the index of the pattern, to be passed to addTrip.
+	 */
+	public int addPattern(Pattern pattern) {
+		int[] stopIdx = new int[pattern.size];
+		for (int i = 0; i < pattern.size; i++) {
+			stopIdx[i] = index(pattern.stops.get(i));
+		}
+		return addPattern(stopIdx, pattern.offsets, pattern.size);
+	}
+
+	private int addPattern(int[] stopIdx, int[] offsets, int length) {
+		if (patternCount + 1 >= patternStart.length) {
+			patternStart = Arrays.copyOf(patternStart, patternStart.length * 2);
+		}
+
+		if (patternLength + length > patternStop.length) {
+			int capacity = Math.max(patternStop.length * 2, patternLength + length);
+			patternStop = Arrays.copyOf(patternStop, capacity);
+			patternOffset = Arrays.copyOf(patternOffset, capacity);
+		}
+
+		System.arraycopy(stopIdx, 0, patternStop, patternLength, length);
+		System.arraycopy(offsets, 0, patternOffset, patternLength, length);
+
+		patternStart[patternCount] = patternLength;
+		patternLength += length;
+		patternStart[patternCount + 1] = patternLength;
+
+		return patternCount++;
+	}
+
+	/** Add a trip that follows the given pattern, leaving its first stop at startTime */
+	public void addTrip(Trip trip, int pattern, int startTime) {
+		int tripCount = trips.size();
+		if (tripCount == tripPattern.length) {
+			tripPattern = Arrays.copyOf(tripPattern, tripCount * 2);
+			tripStart = Arrays.copyOf(tripStart, tripCount * 2);
+		}
+
+		trips.add(trip);
+		tripPattern[tripCount] = pattern;
+		tripStart[tripCount] = startTime;
+		size += patternStart[pattern + 1] - patternStart[pattern];
+	}
+
+	public void addAll(StopTimeStore other) {
+		int[] patternMap = new int[other.patternCount];
+		for (int p = 0; p < other.patternCount; p++) {
+			int start = other.patternStart[p];
+			int length = other.patternStart[p + 1] - start;
+
+			int[] stopIdx = new int[length];
+			for (int i = 0; i < length; i++) {
+				stopIdx[i] = index(other.stops.get(other.patternStop[start + i]));
+			}
+
+			patternMap[p] = addPattern(stopIdx, Arrays.copyOfRange(other.patternOffset, start, start + length), length);
+		}
+
+		for (int t = 0; t < other.trips.size(); t++) {
+			addTrip(other.trips.get(t), patternMap[other.tripPattern[t]], other.tripStart[t]);
+		}
+	}
+
+	/** The number of stop times stored */
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		stops.clear();
+		stopIndices.clear();
+		trips.clear();
+		patternCount = 0;
+		patternLength = 0;
+		size = 0;
+	}
+
+	/** Write all the stop times to the writer, expanding each trip's pattern as it goes */
+	public void writeTo(GtfsFeedWriter gtfsWriter) throws IOException {
+		for (int t = 0; t < trips.size(); t++) {
+			int pattern = tripPattern[t];
+			int start = patternStart[pattern];
+			int end = patternStart[pattern + 1];
+
+			Trip trip = trips.get(t);
+			for (int i = start; i < end; i++) {
+				int time = tripStart[t] + patternOffset[i];
+				gtfsWriter.writeStopTime(trip, stops.get(patternStop[i]), i - start, time, time);
+			}
+		}
+	}
+
+	/**
+	 * Write the patterns and trips of this store, referring to stops and trips by their positions in the given
+	 * maps, so that they can be read back with read().
+	 */
+	public void write(DataOutputStream out, Map<Stop, Integer> stopPositions, Map<Trip, Integer> tripPositions)
+			throws IOException {
+		out.writeInt(patternCount);
+		for (int p = 0; p < patternCount; p++) {
+			int start = patternStart[p];
+			int end = patternStart[p + 1];
+
+			out.writeInt(end - start);
+			for (int i = start; i < end; i++) {
+				out.writeInt(stopPositions.get(stops.get(patternStop[i])));
+				out.writeInt(patternOffset[i]);
+			}
+		}
+
+		out.writeInt(trips.size());
+		for (int t = 0; t < trips.size(); t++) {
+			out.writeInt(tripPositions.get(trips.get(t)));
+			out.writeInt(tripPattern[t]);
+			out.writeInt(tripStart[t]);
+		}
+	}
+
+	/**
+	 * Add the patterns and trips written by write().
+	 * @param stopList the stops, at the positions they were written with.
+	 * @param tripList the trips, at the positions they were written with.
+	 */
+	public void read(ByteBuffer buf, List<Stop> stopList, List<Trip> tripList) {
+		int[] patternMap = new int[buf.getInt()];
+		for (int p = 0; p < patternMap.length; p++) {
+			int length = buf.getInt();
+			int[] stopIdx = new int[length];
+			int[] offsets = new int[length];
+			for (int i = 0; i < length; i++) {
+				stopIdx[i] = index(stopList.get(buf.getInt()));
+				offsets[i] = buf.getInt();
+			}
+			patternMap[p] = addPattern(stopIdx, offsets, length);
+		}
+
+		int tripCount = buf.getInt();
+		for (int t = 0; t < tripCount; t++) {
+			Trip trip = tripList.get(buf.getInt());
+			int pattern = patternMap[buf.getInt()];
+			addTrip(trip, pattern, buf.getInt());
+		}
+	}
+
+	private int index(Stop stop) {
+		Integer idx = stopIndices.get(stop);
+		if (idx == null) {
+			idx = stops.size();
+			stops.add(stop);
+			stopIndices.put(stop, idx);
+		}
+		return idx;
+	}
+
+	/**
+	 * The stops visited by the trips in one direction of a route, and the time at which each is reached in
+	 * seconds after the start of the trip.
+	 */
+	public static class Pattern {
+		private List<Stop> stops = new ArrayList<Stop>();
+		private int[] offsets = new int[INITIAL_CAPACITY];
+		private int size = 0;
+
+		public void add(Stop stop, int offset) {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			stops.add(stop);
+			offsets[size++] = offset;
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+
+}